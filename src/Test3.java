@@ -0,0 +1,62 @@
+import dao.DatabaseManager;
+import model.Doctor;
+import model.Patient;
+import model.Clinic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Checks that batch inserts keep loaded child lists coherent: the rows are
+ * built with detached Clinic and Doctor objects (as CsvImporter does), so the
+ * lists to refresh are the ones on the objects in the identity maps.
+ * Starts from an empty database, like Test.
+ */
+public class Test3 {
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        DatabaseManager dbm = new DatabaseManager();
+        dbm.clearTables();
+
+        Clinic hospital1 = dbm.insertClinic(123456789, "Hospital One", "1234 Road St", "555-555-5555");
+        Doctor igor = dbm.insertDoctor(8735, "Dr. Igor Stravinsky", "Dentist", "555-946-7123", "igorstravinsky@hospital1.org", hospital1);
+        dbm.insertPatient(280084699, "Margaret Marco", "margthemonster@gmail.com", "502-718-0803", "1918-05-04", hospital1, igor);
+        dbm.insertPatient(469155855, "Elise Babees", "elbabees@gmail.com", "169-466-6666", "1996-06-06", hospital1, igor);
+
+        // load the lists first
+        check("clinic's doctors before", dbm.findClinic(123456789).getDoctors().size(), 1);
+        check("clinic's patients before", dbm.findClinic(123456789).getPatients().size(), 2);
+        check("doctor's patients before", dbm.findDoctor(8735).getPatients().size(), 2);
+
+        // then batch-insert through detached copies
+        Clinic detachedClinic = new Clinic(null, 123456789, null, null, null);
+        Doctor detachedDoctor = new Doctor(null, 8735, null, null, null, null, detachedClinic);
+        List<Patient> patients = new ArrayList<Patient>();
+        patients.add(new Patient(null, 234567890, "Delbert Hillegas", "cantfellthedel@hotmail.com", "369-456-1937", "1958-12-25", detachedClinic, detachedDoctor));
+        dbm.insertPatients(patients);
+        List<Doctor> doctors = new ArrayList<Doctor>();
+        doctors.add(new Doctor(null, 3799, "Dr. Susan Cruisin", "Gastroentologist", "555-664-1979", "cruisinsusan@hospital1.org", detachedClinic));
+        dbm.insertDoctors(doctors);
+
+        // and check the lists again
+        check("clinic's doctors after", dbm.findClinic(123456789).getDoctors().size(), 2);
+        check("clinic's patients after", dbm.findClinic(123456789).getPatients().size(), 3);
+        check("doctor's patients after", dbm.findDoctor(8735).getPatients().size(), 3);
+        check("patient count", dbm.countPatients(123456789), 3);
+
+        dbm.commit();
+
+        dbm.close();
+
+        System.out.println("Done.");
+    }
+
+    private static void check(String what, int actual, int expected) {
+        System.out.println(what + ": " + actual);
+        if (actual != expected)
+            throw new IllegalStateException(what + ": expected " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,54 @@
+import dao.DatabaseManager;
+import dao.WriteBehindQueue;
+import model.Clinic;
+import model.Doctor;
+
+import java.util.Map;
+
+/**
+ * Checks that a setter introducing a new specialty works in write-behind
+ * mode: the new SPECIALTY row must be committed before the background
+ * writer's foreign key check needs it, not with the caller's transaction.
+ * Starts from an empty database, like Test.
+ */
+public class Test4 {
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        DatabaseManager dbm = new DatabaseManager();
+        dbm.clearTables();
+
+        Clinic hospital1 = dbm.insertClinic(123456789, "Hospital One", "1234 Road St", "555-555-5555");
+        Doctor igor = dbm.insertDoctor(8735, "Dr. Igor Stravinsky", "Dentist", "555-946-7123", "igorstravinsky@hospital1.org", hospital1);
+        dbm.commit();
+
+        // a name no earlier run has added
+        String specialty = "Specialty " + System.currentTimeMillis();
+        WriteBehindQueue writeBehind = dbm.enableWriteBehind();
+        long start = System.currentTimeMillis();
+        igor.setSpecialty(specialty);
+        writeBehind.sync().join();
+        System.out.println("written in " + (System.currentTimeMillis() - start) + " ms");
+        check("write-behind failures", writeBehind.getFailures(), 0);
+        dbm.disableWriteBehind();
+
+        // read it back from the table, not the loaded object
+        dbm.clearCaches();
+        Map<String, Integer> specialties = dbm.countDoctorsBySpecialty(123456789);
+        check("doctors with the new specialty", specialties.getOrDefault(specialty, 0), 1);
+        check("dentists", specialties.getOrDefault("Dentist", 0), 0);
+
+        dbm.commit();
+
+        dbm.close();
+
+        System.out.println("Done.");
+    }
+
+    private static void check(String what, long actual, long expected) {
+        System.out.println(what + ": " + actual);
+        if (actual != expected)
+            throw new IllegalStateException(what + ": expected " + expected + " but was " + actual);
+    }
+}
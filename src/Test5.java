@@ -0,0 +1,59 @@
+import dao.ConnectionPool;
+import dao.DatabaseManager;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Checks the connection pool's behaviour when every connection is taken:
+ * openSession() waits up to the acquire timeout and then fails, and a
+ * waiting caller gets the connection a closing session gives back.
+ * Reads an already created database, like Test2.
+ */
+public class Test5 {
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        ConnectionPool pool = new ConnectionPool(2, 500);
+        try {
+            DatabaseManager first = pool.openSession();
+            DatabaseManager second = pool.openSession();
+            check("idle connections with both taken", pool.getIdleCount(), 0);
+
+            // nobody gives one back: the third caller times out
+            long start = System.currentTimeMillis();
+            try {
+                pool.openSession();
+                throw new IllegalStateException("opened a third session on a pool of two");
+            } catch (RuntimeException e) {
+                if (!e.getMessage().startsWith("timed out"))
+                    throw e;
+            }
+            long waited = System.currentTimeMillis() - start;
+            System.out.println("gave up after " + waited + " ms");
+            if (waited < 500)
+                throw new IllegalStateException("gave up before the acquire timeout: " + waited + " ms");
+
+            // a session closed while the third caller waits hands its connection over
+            CompletableFuture<DatabaseManager> third = CompletableFuture.supplyAsync(pool::openSession);
+            Thread.sleep(100);
+            check("third caller still waiting", third.isDone() ? 1 : 0, 0);
+            first.close();
+            DatabaseManager session = third.get();
+            session.findClinicByName("Hospital One");
+            session.close();
+            second.close();
+            check("idle connections after closing", pool.getIdleCount(), 2);
+        } finally {
+            pool.close();
+        }
+
+        System.out.println("Done.");
+    }
+
+    private static void check(String what, long actual, long expected) {
+        System.out.println(what + ": " + actual);
+        if (actual != expected)
+            throw new IllegalStateException(what + ": expected " + expected + " but was " + actual);
+    }
+}
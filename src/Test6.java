@@ -0,0 +1,91 @@
+import dao.DatabaseManager;
+import dao.OperationSnapshot;
+import model.Clinic;
+import model.Doctor;
+import model.Patient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares loading a clinic's patients with the joined query against the
+ * N+1 path it replaced (a lookup per patient, then the patient's clinic
+ * and doctor): statements per call, from the metrics, and latency.
+ * Starts from an empty database, like Test.
+ */
+public class Test6 {
+    private static final int DOCTORS = 10;
+    private static final int PATIENTS_PER_DOCTOR = 50;
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        DatabaseManager dbm = new DatabaseManager();
+        dbm.clearTables();
+
+        Clinic clinic = dbm.insertClinic(1, "Hospital One", "1234 Road St", "555-555-5555");
+        List<Doctor> doctors = new ArrayList<Doctor>();
+        for (int d = 0; d < DOCTORS; d++)
+            doctors.add(new Doctor(null, d, "Doctor " + d, "Dentist", "555-111-1111", "d" + d + "@hospital1.org", clinic));
+        dbm.insertDoctors(doctors);
+        List<Patient> patients = new ArrayList<Patient>();
+        for (int p = 0; p < DOCTORS * PATIENTS_PER_DOCTOR; p++)
+            patients.add(new Patient(null, p, "Patient " + p, "p" + p + "@gmail.com", "555-222-2222", "1990-01-01",
+                    clinic, doctors.get(p / PATIENTS_PER_DOCTOR)));
+        dbm.insertPatients(patients);
+        dbm.commit();
+
+        // a few rounds each, from empty identity maps, so that both are warmed up
+        long joinedMillis = Long.MAX_VALUE, oneByOneMillis = Long.MAX_VALUE;
+        long joinedStatements = 0, oneByOneStatements = 0, perCall = 0;
+        for (int round = 0; round < 5; round++) {
+            dbm.clearCaches();
+            dbm.getMetrics().reset();
+            long start = System.nanoTime();
+            for (Patient p : dbm.findClinic(1).getPatients()) {
+                p.getClinic();
+                p.getDoctor();
+            }
+            joinedMillis = Math.min(joinedMillis, (System.nanoTime() - start) / 1000000);
+            joinedStatements = dbm.getMetrics().getTotalStatements();
+            perCall = statementsPerCall(dbm, "ClinicDAO.getPatients");
+
+            dbm.clearCaches();
+            dbm.getMetrics().reset();
+            start = System.nanoTime();
+            for (int ssn = 0; ssn < DOCTORS * PATIENTS_PER_DOCTOR; ssn++) {
+                Patient p = dbm.findPatient(ssn);
+                p.getClinic();
+                p.getDoctor();
+            }
+            oneByOneMillis = Math.min(oneByOneMillis, (System.nanoTime() - start) / 1000000);
+            oneByOneStatements = dbm.getMetrics().getTotalStatements();
+        }
+
+        System.out.println("joined: " + joinedStatements + " statements, " + joinedMillis + " ms");
+        System.out.println("one by one: " + oneByOneStatements + " statements, " + oneByOneMillis + " ms");
+        check("statements per ClinicDAO.getPatients call", perCall, 1);
+        // the clinic lookup, then the patients with their clinics and doctors
+        check("statements of the joined path", joinedStatements, 2);
+        // a lookup per patient, plus the shared clinic and each doctor once
+        check("statements of the one-by-one path", oneByOneStatements, DOCTORS * PATIENTS_PER_DOCTOR + 1 + DOCTORS);
+
+        dbm.commit();
+
+        dbm.close();
+
+        System.out.println("Done.");
+    }
+
+    private static long statementsPerCall(DatabaseManager dbm, String operation) {
+        OperationSnapshot s = dbm.metrics().get(operation);
+        return s.getStatements() / s.getCalls();
+    }
+
+    private static void check(String what, long actual, long expected) {
+        System.out.println(what + ": " + actual);
+        if (actual != expected)
+            throw new IllegalStateException(what + ": expected " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,177 @@
+import dao.DatabaseManager;
+import model.Doctor;
+import model.Patient;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the schema migration of a database made before SCHEMA_VERSION
+ * existed: builds one with the original (version 0) tables, opens it with
+ * a DatabaseManager, and checks that it reaches the current version with
+ * its indexes and data, and that a malformed birth date is reported rather
+ * than failing the migration. Times name lookups before and after, so that
+ * running it on a few million patients shows what the indexes buy.
+ *
+ * Usage: Test7 [patients] [url]
+ */
+public class Test7 {
+    private static final String[] INDEXES = { "CLINIC_NAME", "DOCTOR_DNAME", "DOCTOR_CLINIC", "DOCTOR_SPECIALTY",
+            "PATIENT_PNAME", "PATIENT_CLINIC", "PATIENT_DOCTOR", "PATIENT_CLINIC_BIRTH" };
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws SQLException {
+        int patients = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String url = args.length > 1 ? args[1] : "jdbc:derby:memory:BaselineDatabase";
+
+        Connection conn = DriverManager.getConnection(url + ";create=true");
+        conn.setAutoCommit(false);
+        createBaseline(conn, patients);
+        System.out.println("version 0, " + patients + " patients: " + lookups(conn, patients) + " us per name lookup");
+        conn.close();
+
+        long start = System.currentTimeMillis();
+        DatabaseManager dbm = new DatabaseManager(url);
+        System.out.println("migrated in " + (System.currentTimeMillis() - start) + " ms");
+
+        conn = DriverManager.getConnection(url);
+        conn.setAutoCommit(false);
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("select version from SCHEMA_VERSION");
+        rs.next();
+        check("schema version", rs.getInt(1), 4);
+        rs.close();
+
+        PreparedStatement pstmt = conn.prepareStatement(
+                "select count(*) from SYS.SYSCONGLOMERATES where ISINDEX and CONGLOMERATENAME = ?");
+        for (String index : INDEXES) {
+            pstmt.setString(1, index);
+            rs = pstmt.executeQuery();
+            rs.next();
+            check("index " + index, rs.getInt(1), 1);
+            rs.close();
+        }
+        System.out.println("current version: " + lookups(conn, patients) + " us per name lookup");
+        conn.commit();
+        conn.close();
+
+        // the rows made it through the column conversions
+        Patient patient = dbm.findPatient(patients - 1);
+        check("birth date kept", patient.getBirthDate().equals(birthDate(patients - 1)) ? 1 : 0, 1);
+        Doctor doctor = dbm.findDoctor(0);
+        check("specialty kept", doctor.getSpecialty().equals("Specialty 0") ? 1 : 0, 1);
+        check("patients counted", dbm.countPatients(0), (patients + 9) / 10);
+        Map<Integer, String> rejects = dbm.getBirthDateRejects();
+        check("birth dates rejected", rejects.size(), 1);
+        check("rejected birth date kept", "1990-13-45".equals(rejects.get(patients)) ? 1 : 0, 1);
+        check("rejected birth date left null", dbm.findPatient(patients).getBirthDate() == null ? 1 : 0, 1);
+
+        dbm.commit();
+
+        dbm.close();
+
+        System.out.println("Done.");
+    }
+
+    // the tables as the first release created them, filled with ten clinics
+    // of ten doctors each
+    private static void createBaseline(Connection conn, int patients) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("create table CLINIC(clinicName varchar(30) not null, address varchar(50) not null, "
+                + "phoneNumber varchar(14) not null, clinicID int not null, primary key(clinicID))");
+        stmt.executeUpdate("create table DOCTOR(mln int not null, dname varchar(50) not null, "
+                + "specialty varchar(30) not null, phone varchar(14) not null, email varchar(50) not null, "
+                + "dCID int not null, primary key(mln))");
+        stmt.executeUpdate("create table PATIENT(ssn int not null, pname varchar(50) not null, "
+                + "email varchar(50) not null, phone varchar(14) not null, birthDate varchar(10) not null, "
+                + "pCID int, pDID int, primary key(ssn))");
+        stmt.executeUpdate("alter table DOCTOR add constraint doctor_fk_clinic "
+                + "foreign key(dCID) references CLINIC(clinicID)");
+        stmt.executeUpdate("alter table PATIENT add constraint patient_fk_clinic "
+                + "foreign key(pCID) references CLINIC(clinicID) on delete set null");
+        stmt.executeUpdate("alter table PATIENT add constraint patient_fk_doctor "
+                + "foreign key(pDID) references DOCTOR(mln) on delete set null");
+        stmt.close();
+
+        PreparedStatement pstmt = conn.prepareStatement("insert into CLINIC values(?, ?, ?, ?)");
+        for (int c = 0; c < 10; c++) {
+            pstmt.setString(1, "Clinic " + c);
+            pstmt.setString(2, c + " Main St");
+            pstmt.setString(3, "555-000-0000");
+            pstmt.setInt(4, c);
+            pstmt.executeUpdate();
+        }
+        pstmt = conn.prepareStatement("insert into DOCTOR values(?, ?, ?, ?, ?, ?)");
+        for (int d = 0; d < 100; d++) {
+            pstmt.setInt(1, d);
+            pstmt.setString(2, "Doctor " + d);
+            pstmt.setString(3, "Specialty " + d % 20);
+            pstmt.setString(4, "555-111-1111");
+            pstmt.setString(5, "d" + d + "@example.org");
+            pstmt.setInt(6, d / 10);
+            pstmt.executeUpdate();
+        }
+        pstmt = conn.prepareStatement("insert into PATIENT values(?, ?, ?, ?, ?, ?, ?)");
+        for (int p = 0; p < patients; p++) {
+            pstmt.setInt(1, p);
+            pstmt.setString(2, "Patient " + p);
+            pstmt.setString(3, "p" + p + "@example.org");
+            pstmt.setString(4, "555-222-2222");
+            pstmt.setString(5, birthDate(p));
+            pstmt.setInt(6, p % 10);
+            pstmt.setInt(7, p % 100);
+            pstmt.addBatch();
+            if (p % 10000 == 9999) {
+                pstmt.executeBatch();
+                conn.commit();
+            }
+        }
+        pstmt.executeBatch();
+
+        // one legacy row whose date can't be parsed
+        pstmt.setInt(1, patients);
+        pstmt.setString(2, "Patient " + patients);
+        pstmt.setString(3, "p" + patients + "@example.org");
+        pstmt.setString(4, "555-222-2222");
+        pstmt.setString(5, "1990-13-45");
+        pstmt.setNull(6, Types.INTEGER);
+        pstmt.setNull(7, Types.INTEGER);
+        pstmt.executeUpdate();
+        conn.commit();
+    }
+
+    private static String birthDate(int p) {
+        return (1930 + p % 80) + "-0" + (1 + p % 9) + "-1" + p % 10;
+    }
+
+    // microseconds per patient lookup by name
+    private static long lookups(Connection conn, int patients) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement("select ssn from PATIENT where pname = ?");
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            pstmt.setString(1, "Patient " + random.nextInt(patients));
+            ResultSet rs = pstmt.executeQuery();
+            rs.next();
+            rs.close();
+        }
+        pstmt.close();
+        conn.commit();
+        return (System.nanoTime() - start) / 20000;
+    }
+
+    private static void check(String what, long actual, long expected) {
+        System.out.println(what + ": " + actual);
+        if (actual != expected)
+            throw new IllegalStateException(what + ": expected " + expected + " but was " + actual);
+    }
+}
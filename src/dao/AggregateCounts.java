@@ -0,0 +1,149 @@
+package dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-clinic aggregate counts: number of patients, patients by doctor and
+ * doctors by specialty. A clinic's counts are computed in SQL the first
+ * time they are asked for, then kept up to date by the DAOs as this
+ * DatabaseManager inserts and moves rows, so that later reads are O(1).
+ * Like the identity maps, they don't see changes made through other
+ * connections until clear().
+ *
+ * In write-behind mode, computing a clinic's counts first waits for the
+ * writer, which may need the locks of rows this session changed; so it is
+ * refused while the session has uncommitted changes.
+ *
+ * @author Eli Anderson
+ */
+class AggregateCounts {
+	// the counts of one clinic
+	private static class ClinicCounts {
+		int patients;
+		final Map<Integer, Integer> patientsByDoctor = new TreeMap<Integer, Integer>();
+		final Map<String, Integer> doctorsBySpecialty = new TreeMap<String, Integer>();
+	}
+
+	private final DatabaseManager dbm;
+	private final Map<Integer, ClinicCounts> clinics = new HashMap<Integer, ClinicCounts>();
+
+	AggregateCounts(DatabaseManager dbm) {
+		this.dbm = dbm;
+	}
+
+	synchronized int countPatients(int cid) {
+		return counts(cid).patients;
+	}
+
+	// the maps are read-only copies, taken under the lock; they don't follow later changes
+	synchronized Map<Integer, Integer> countPatientsByDoctor(int cid) {
+		return Collections.unmodifiableMap(new TreeMap<Integer, Integer>(counts(cid).patientsByDoctor));
+	}
+
+	synchronized Map<String, Integer> countDoctorsBySpecialty(int cid) {
+		return Collections.unmodifiableMap(new TreeMap<String, Integer>(counts(cid).doctorsBySpecialty));
+	}
+
+	/**
+	 * Count a new patient, or one that moved in, of the given clinic and doctor
+	 *
+	 * @param cid or null
+	 * @param mln or null
+	 */
+	synchronized void patientAdded(Integer cid, Integer mln) {
+		ClinicCounts c = cid == null ? null : clinics.get(cid);
+		if (c == null)
+			return;
+		c.patients++;
+		if (mln != null)
+			c.patientsByDoctor.merge(mln, 1, Integer::sum);
+	}
+
+	synchronized void patientRemoved(Integer cid, Integer mln) {
+		ClinicCounts c = cid == null ? null : clinics.get(cid);
+		if (c == null)
+			return;
+		c.patients--;
+		if (mln != null)
+			decrement(c.patientsByDoctor, mln);
+	}
+
+	synchronized void doctorAdded(int cid, String specialty) {
+		ClinicCounts c = clinics.get(cid);
+		if (c != null)
+			c.doctorsBySpecialty.merge(specialty, 1, Integer::sum);
+	}
+
+	synchronized void doctorRemoved(int cid, String specialty) {
+		ClinicCounts c = clinics.get(cid);
+		if (c != null)
+			decrement(c.doctorsBySpecialty, specialty);
+	}
+
+	private static <K> void decrement(Map<K, Integer> counts, K key) {
+		Integer n = counts.get(key);
+		if (n == null || n <= 1)
+			counts.remove(key);
+		else
+			counts.put(key, n - 1);
+	}
+
+	/**
+	 * Forget all counts, so that they are recomputed on next access
+	 */
+	synchronized void clear() {
+		clinics.clear();
+	}
+
+	// load the counts of a clinic on first use
+	private ClinicCounts counts(int cid) {
+		ClinicCounts c = clinics.get(cid);
+		if (c != null)
+			return c;
+
+		// the queries must see changes still waiting in the write-behind
+		// queue, and in the unit of work
+		WriteBehindQueue writeBehind = dbm.getWriteBehind();
+		if (writeBehind != null) {
+			// waiting for the writer while it waits for our locks would hang
+			if (dbm.hasUncommittedChanges())
+				throw new IllegalStateException("commit before counting in write-behind mode");
+			writeBehind.sync().join();
+		}
+		dbm.flush();
+		c = new ClinicCounts();
+		try {
+			PreparedStatement pstmt = dbm.prepare("select count(*) from PATIENT where pCID = ?");
+			pstmt.setInt(1, cid);
+			ResultSet rs = pstmt.executeQuery();
+			rs.next();
+			c.patients = rs.getInt(1);
+			rs.close();
+
+			pstmt = dbm.prepare("select pDID, count(*) from PATIENT where pCID = ? and pDID is not null group by pDID");
+			pstmt.setInt(1, cid);
+			rs = pstmt.executeQuery();
+			while (rs.next())
+				c.patientsByDoctor.put(rs.getInt(1), rs.getInt(2));
+			rs.close();
+
+			pstmt = dbm.prepare("select specialtyID, count(*) from DOCTOR where dCID = ? group by specialtyID");
+			pstmt.setInt(1, cid);
+			rs = pstmt.executeQuery();
+			while (rs.next())
+				c.doctorsBySpecialty.put(dbm.getSpecialties().name(rs.getInt(1)), rs.getInt(2));
+			rs.close();
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error counting clinic's patients and doctors", e);
+		}
+		clinics.put(cid, c);
+		return c;
+	}
+}
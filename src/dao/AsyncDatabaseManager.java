@@ -0,0 +1,171 @@
+package dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import model.Clinic;
+import model.Doctor;
+import model.Patient;
+
+/**
+ * Asynchronous front end to a ConnectionPool: each call runs on a worker
+ * thread in a session of its own and returns a CompletableFuture, so that
+ * independent lookups can be started together and joined, e.g.
+ *
+ *   CompletableFuture<Clinic> c = async.findClinic(cid);
+ *   CompletableFuture<Collection<Patient>> ps = async.getPatientsOfDoctor(mln);
+ *   CompletableFuture.allOf(c, ps).join();
+ *
+ * At most maxConcurrency calls run at once (each holding one pooled
+ * connection); the rest wait in a queue. The session is committed when the
+ * call succeeds, rolled back when it fails or is cancelled, and then closed,
+ * so the returned model objects are detached: read their attributes, but do
+ * further navigation or updates inside a submit() call.
+ *
+ * Cancelling a future whose call has not started yet means it never borrows
+ * a connection. A call that is already running is not interrupted (Derby
+ * 10.7 does not survive interrupts during I/O); it runs to the end and its
+ * changes are rolled back.
+ *
+ * @author Eli Anderson
+ */
+public class AsyncDatabaseManager implements AutoCloseable {
+	private final ConnectionPool pool;
+	private final ExecutorService executor;
+
+	/**
+	 * Run up to one call per pooled connection at once
+	 *
+	 * @param pool
+	 */
+	public AsyncDatabaseManager(ConnectionPool pool) {
+		this(pool, pool.getSize());
+	}
+
+	/**
+	 * @param pool
+	 * @param maxConcurrency calls run at once; more than the pool size only makes them wait for connections
+	 */
+	public AsyncDatabaseManager(ConnectionPool pool, int maxConcurrency) {
+		this.pool = pool;
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory threads = r -> {
+			Thread t = new Thread(r, "dao-async-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		this.executor = Executors.newFixedThreadPool(maxConcurrency, threads);
+	}
+
+	/**
+	 * Run task in a new session on a worker thread. The session is committed
+	 * if task returns normally, and closed either way.
+	 *
+	 * @param task
+	 * @return the future result of task
+	 */
+	public <T> CompletableFuture<T> submit(Function<DatabaseManager, T> task) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(() -> run(task, future));
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(new IllegalStateException("async database manager is closed", e));
+		}
+		return future;
+	}
+
+	private <T> void run(Function<DatabaseManager, T> task, CompletableFuture<T> future) {
+		// cancelled while queued: don't take a connection for it
+		if (future.isDone())
+			return;
+
+		DatabaseManager session = null;
+		try {
+			session = pool.openSession();
+			T result = task.apply(session);
+			if (future.isCancelled())
+				return; // closing the session rolls back
+			session.commit();
+			future.complete(result);
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+		} finally {
+			if (session != null)
+				session.close();
+		}
+	}
+
+	//***************************************************************
+	// Data retrieval functions
+
+	public CompletableFuture<Patient> findPatient(int ssn) {
+		return submit(s -> s.findPatient(ssn));
+	}
+
+	public CompletableFuture<Doctor> findDoctor(int mln) {
+		return submit(s -> s.findDoctor(mln));
+	}
+
+	public CompletableFuture<Clinic> findClinic(int cid) {
+		return submit(s -> s.findClinic(cid));
+	}
+
+	public CompletableFuture<Patient> findPatientByName(String pname) {
+		return submit(s -> s.findPatientByName(pname));
+	}
+
+	public CompletableFuture<Doctor> findDoctorByName(String dname) {
+		return submit(s -> s.findDoctorByName(dname));
+	}
+
+	public CompletableFuture<Clinic> findClinicByName(String cname) {
+		return submit(s -> s.findClinicByName(cname));
+	}
+
+	//***************************************************************
+	// Child collections -- empty if the parent doesn't exist
+
+	public CompletableFuture<Collection<Patient>> getPatientsOfClinic(int cid) {
+		return submit(s -> {
+			Clinic clinic = s.findClinic(cid);
+			return clinic == null ? Collections.<Patient>emptyList() : clinic.getPatients();
+		});
+	}
+
+	public CompletableFuture<Collection<Doctor>> getDoctorsOfClinic(int cid) {
+		return submit(s -> {
+			Clinic clinic = s.findClinic(cid);
+			return clinic == null ? Collections.<Doctor>emptyList() : clinic.getDoctors();
+		});
+	}
+
+	public CompletableFuture<Collection<Patient>> getPatientsOfDoctor(int mln) {
+		return submit(s -> {
+			Doctor doctor = s.findDoctor(mln);
+			return doctor == null ? Collections.<Patient>emptyList() : doctor.getPatients();
+		});
+	}
+
+	/**
+	 * Stop accepting calls and wait for the queued and running ones to finish.
+	 * The pool is left open.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+				System.out.println("warning: still waiting for async database calls to finish");
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package dao;
+
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Runs a multi-row insert through JDBC batches. Rather than looking up each
+ * key first, duplicates are detected from the constraint violation the
+ * database reports, and the rest of the batch is resubmitted.
+ *
+ * The same machinery runs batched updates, and the upserts built from an
+ * update and an insert (Derby 10.7 has no MERGE statement).
+ *
+ * @author Eli Anderson
+ */
+class BatchInserter<T> {
+	/**
+	 * Sets the parameters of the insert statement for one row.
+	 */
+	interface Binder<T> {
+		void bind(PreparedStatement pstmt, T row) throws SQLException;
+	}
+
+	// SQLState for a duplicate primary key
+	static final String DUPLICATE_KEY = "23505";
+
+	private final DatabaseManager dbm;
+	private final String sql;
+	private final Binder<T> binder;
+	private final InsertResult success;
+
+	// for the change log: the table written, and the key of a row
+	private String table;
+	private ToIntFunction<T> key;
+
+	BatchInserter(DatabaseManager dbm, String sql, Binder<T> binder) {
+		this(dbm, sql, binder, InsertResult.INSERTED);
+	}
+
+	/**
+	 * @param success the result for a row the statement changed; rows it
+	 * changed nothing for (an update of a missing key) get a null result
+	 */
+	BatchInserter(DatabaseManager dbm, String sql, Binder<T> binder, InsertResult success) {
+		this.dbm = dbm;
+		this.sql = sql;
+		this.binder = binder;
+		this.success = success;
+	}
+
+	/**
+	 * Record each row the statement inserts or updates in the change log,
+	 * in the transaction that writes it
+	 *
+	 * @param table
+	 * @param key
+	 * @return this inserter
+	 */
+	BatchInserter<T> capture(String table, ToIntFunction<T> key) {
+		this.table = table;
+		this.key = key;
+		return this;
+	}
+
+	/**
+	 * Insert all rows, sending batchSize rows per round trip and committing
+	 * every commitInterval rows (never, if commitInterval is 0).
+	 *
+	 * @param rows
+	 * @param batchSize
+	 * @param commitInterval
+	 * @return one result per row, in the same order as rows
+	 * @throws SQLException if the database fails for a reason other than a rejected row
+	 */
+	List<InsertResult> run(List<T> rows, int batchSize, int commitInterval) throws SQLException {
+		List<InsertResult> results = new ArrayList<InsertResult>(rows.size());
+		PreparedStatement pstmt = dbm.prepare(sql);
+		int sinceCommit = 0;
+
+		int start = 0;
+		while (start < rows.size()) {
+			int end = Math.min(start + batchSize, rows.size());
+			for (int i = start; i < end; i++) {
+				binder.bind(pstmt, rows.get(i));
+				pstmt.addBatch();
+			}
+
+			// dbm.prepare counted the first round trip; count the others here
+			if (start > 0)
+				Metrics.statement();
+
+			int done;
+			try {
+				for (int count : pstmt.executeBatch())
+					results.add(count == 0 ? null : success);
+				done = end;
+			} catch (BatchUpdateException e) {
+				InsertResult rejected = classify(e);
+				int[] counts = e.getUpdateCounts();
+				for (int count : counts)
+					results.add(count == Statement.EXECUTE_FAILED ? rejected : count == 0 ? null : success);
+				done = start + counts.length;
+
+				// the driver stopped at the rejected row; record it and resubmit the rest
+				if (done < end) {
+					results.add(rejected);
+					done++;
+				}
+				pstmt.clearBatch();
+			}
+
+			if (table != null)
+				logChanges(rows, results, start, done);
+			sinceCommit += done - start;
+			if (commitInterval > 0 && sinceCommit >= commitInterval) {
+				dbm.commit();
+				sinceCommit = 0;
+			}
+			start = done;
+		}
+
+		return results;
+	}
+
+	private void logChanges(List<T> rows, List<InsertResult> results, int from, int to) {
+		ChangeLog log = dbm.getChangeLog();
+		for (int i = from; i < to; i++) {
+			if (results.get(i) == InsertResult.INSERTED)
+				log.inserted(table, key.applyAsInt(rows.get(i)));
+			else if (results.get(i) == InsertResult.UPDATED)
+				log.updated(table, key.applyAsInt(rows.get(i)));
+		}
+	}
+
+	/**
+	 * Upsert one row: try the insert, and overwrite the existing row if the
+	 * key is taken. One statement for a new key, two for an existing one.
+	 *
+	 * @return INSERTED or UPDATED
+	 * @throws SQLException
+	 */
+	static <T> InsertResult upsert(DatabaseManager dbm, String insertSql, Binder<T> insertBinder,
+			String updateSql, Binder<T> updateBinder, T row) throws SQLException {
+		PreparedStatement pstmt = dbm.prepare(insertSql);
+		insertBinder.bind(pstmt, row);
+		try {
+			pstmt.executeUpdate();
+			return InsertResult.INSERTED;
+		} catch (SQLException e) {
+			// Derby only rolls back the failed statement, so the transaction carries on
+			if (!DUPLICATE_KEY.equals(e.getSQLState()))
+				throw e;
+		}
+
+		pstmt = dbm.prepare(updateSql);
+		updateBinder.bind(pstmt, row);
+		pstmt.executeUpdate();
+		return InsertResult.UPDATED;
+	}
+
+	/**
+	 * Upsert many rows with batches: first update every row, then insert the
+	 * ones whose key matched nothing. That is two batched statements per
+	 * batch, and no failed statements when most keys already exist.
+	 *
+	 * @param dbm
+	 * @param table the table written, for the change log
+	 * @param key the key of a row, for the change log
+	 * @param rows
+	 * @param batchSize
+	 * @param commitInterval rows between commits, or 0 to leave committing to the caller
+	 * @return one result per row: INSERTED, UPDATED, DUPLICATE (inserted
+	 * concurrently by another connection) or FAILED
+	 * @throws SQLException
+	 */
+	static <T> List<InsertResult> upsertAll(DatabaseManager dbm, String table, ToIntFunction<T> key,
+			String insertSql, Binder<T> insertBinder, String updateSql, Binder<T> updateBinder,
+			List<T> rows, int batchSize, int commitInterval) throws SQLException {
+		List<InsertResult> results = new ArrayList<InsertResult>(rows.size());
+		int chunk = commitInterval > 0 ? commitInterval : Math.max(rows.size(), 1);
+		for (int from = 0; from < rows.size(); from += chunk) {
+			List<T> part = rows.subList(from, Math.min(from + chunk, rows.size()));
+			List<InsertResult> partResults = new BatchInserter<T>(dbm, updateSql, updateBinder, InsertResult.UPDATED)
+					.capture(table, key).run(part, batchSize, 0);
+
+			List<T> missing = new ArrayList<T>();
+			for (int i = 0; i < part.size(); i++)
+				if (partResults.get(i) == null)
+					missing.add(part.get(i));
+			if (!missing.isEmpty()) {
+				List<InsertResult> inserted = new BatchInserter<T>(dbm, insertSql, insertBinder)
+						.capture(table, key).run(missing, batchSize, 0);
+				int next = 0;
+				for (int i = 0; i < partResults.size(); i++)
+					if (partResults.get(i) == null)
+						partResults.set(i, inserted.get(next++));
+			}
+
+			results.addAll(partResults);
+			if (commitInterval > 0)
+				dbm.commit();
+		}
+		return results;
+	}
+
+	private static InsertResult classify(BatchUpdateException e) throws SQLException {
+		String state = e.getSQLState();
+		if (DUPLICATE_KEY.equals(state))
+			return InsertResult.DUPLICATE;
+		// integrity constraint violations are per-row problems; anything else is fatal
+		if (state != null && state.startsWith("23"))
+			return InsertResult.FAILED;
+		throw e;
+	}
+}
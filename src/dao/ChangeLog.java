@@ -0,0 +1,226 @@
+package dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Change data capture for one DatabaseManager: every insert, update and
+ * clear made through the DAOs is appended to the CHANGE_LOG table, in the
+ * same transaction as the change itself, so consumers can pull incremental
+ * deltas with changesSince() instead of rescanning the tables.
+ *
+ * Changes are collected in memory and written as one batch when the
+ * manager flushes or commits. Within a transaction, the changes to one row
+ * become one entry (an insert followed by updates stays an INSERT), and
+ * clearing a table replaces the entries for its rows.
+ *
+ * Sequence numbers come from an identity column, so they increase in the
+ * order entries are written. An entry of a transaction that has not
+ * committed yet keeps its row locked, so a reader scanning past it waits
+ * for the commit rather than skipping it.
+ *
+ * @author Eli Anderson
+ */
+class ChangeLog {
+	private static final String INSERT_CMD =
+			"insert into CHANGE_LOG(tableName, operation, keyValue, columnNames) values(?, ?, ?, ?)";
+	private static final String SINCE_CMD =
+			"select seq, tableName, operation, keyValue, columnNames, changedAt from CHANGE_LOG"
+			+ " where seq > ? order by seq fetch first ? rows only";
+
+	// changes not yet written, by table and key ("PATIENT:12", or "PATIENT:*" for a clear)
+	private static class Pending {
+		final String table;
+		final ChangeRecord.Operation operation;
+		final Integer key;
+		final TreeSet<String> columns = new TreeSet<String>();
+
+		Pending(String table, ChangeRecord.Operation operation, Integer key) {
+			this.table = table;
+			this.operation = operation;
+			this.key = key;
+		}
+	}
+
+	private final DatabaseManager dbm;
+	private final Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+	private boolean enabled = true;
+
+	// whether rows have changed since the last commit or rollback, logged or not
+	private boolean uncommitted;
+
+	ChangeLog(DatabaseManager dbm) {
+		this.dbm = dbm;
+	}
+
+	/**
+	 * Create the CHANGE_LOG table; run by SchemaMigrator
+	 *
+	 * @param stmt the batch the DDL is added to
+	 * @throws SQLException
+	 */
+	static void create(Statement stmt) throws SQLException {
+		stmt.addBatch("create table CHANGE_LOG("
+				+ "seq bigint generated always as identity primary key, "
+				+ "tableName varchar(10) not null, "
+				+ "operation varchar(6) not null, "
+				+ "keyValue int, "
+				+ "columnNames varchar(200), "
+				+ "changedAt timestamp default current_timestamp)");
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	void inserted(String table, int key) {
+		uncommitted = true;
+		if (!enabled)
+			return;
+		// a row cleared and inserted again in one transaction is still new
+		pending.put(table + ":" + key, new Pending(table, ChangeRecord.Operation.INSERT, key));
+	}
+
+	/**
+	 * @param columns the changed columns, or none if the whole row was rewritten
+	 */
+	void updated(String table, int key, String... columns) {
+		uncommitted = true;
+		if (!enabled)
+			return;
+		String id = table + ":" + key;
+		Pending change = pending.get(id);
+		if (change == null) {
+			change = new Pending(table, ChangeRecord.Operation.UPDATE, key);
+			pending.put(id, change);
+		}
+		if (change.operation == ChangeRecord.Operation.UPDATE)
+			change.columns.addAll(Arrays.asList(columns));
+	}
+
+	void cleared(String table) {
+		uncommitted = true;
+		if (!enabled)
+			return;
+		Iterator<Pending> it = pending.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().table.equals(table))
+				it.remove();
+		}
+		pending.put(table + ":*", new Pending(table, ChangeRecord.Operation.CLEAR, null));
+	}
+
+	/**
+	 * Forget changes that are being rolled back
+	 */
+	void clear() {
+		pending.clear();
+		uncommitted = false;
+	}
+
+	/**
+	 * The transaction has committed
+	 */
+	void committed() {
+		uncommitted = false;
+	}
+
+	boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * @return true if the transaction has changed rows (and so holds their
+	 * locks), whether or not the changes are logged
+	 */
+	boolean hasUncommitted() {
+		return uncommitted;
+	}
+
+	/**
+	 * Append the pending changes to CHANGE_LOG, in one batch
+	 *
+	 * @throws SQLException
+	 */
+	void flush() throws SQLException {
+		if (pending.isEmpty())
+			return;
+		PreparedStatement pstmt = dbm.prepare(INSERT_CMD);
+		for (Pending change : pending.values()) {
+			pstmt.setString(1, change.table);
+			pstmt.setString(2, change.operation.name());
+			pstmt.setObject(3, change.key, Types.INTEGER);
+			pstmt.setString(4, change.columns.isEmpty() ? null : String.join(",", change.columns));
+			pstmt.addBatch();
+		}
+		pstmt.executeBatch();
+		pending.clear();
+	}
+
+	/**
+	 * Read committed entries (and this manager's own written ones) after seq
+	 *
+	 * @param seq the last sequence number already seen, or 0 for the start of the log
+	 * @param maxBatch entries returned at most
+	 * @return entries in sequence order
+	 * @throws SQLException
+	 */
+	List<ChangeRecord> since(long seq, int maxBatch) throws SQLException {
+		PreparedStatement pstmt = dbm.prepare(SINCE_CMD);
+		pstmt.setLong(1, seq);
+		pstmt.setInt(2, maxBatch);
+		List<ChangeRecord> changes = new ArrayList<ChangeRecord>();
+		ResultSet rs = pstmt.executeQuery();
+		while (rs.next()) {
+			Metrics.row();
+			String columns = rs.getString("columnNames");
+			changes.add(new ChangeRecord(rs.getLong("seq"), rs.getString("tableName"),
+					ChangeRecord.Operation.valueOf(rs.getString("operation")),
+					DatabaseManager.getInteger(rs, "keyValue"),
+					columns == null ? Collections.<String>emptyList() : Arrays.asList(columns.split(",")),
+					rs.getTimestamp("changedAt")));
+		}
+		rs.close();
+		return changes;
+	}
+
+	/**
+	 * @return the sequence number of the newest entry, or 0 if the log is empty
+	 * @throws SQLException
+	 */
+	long lastSeq() throws SQLException {
+		PreparedStatement pstmt = dbm.prepare("select max(seq) from CHANGE_LOG");
+		ResultSet rs = pstmt.executeQuery();
+		rs.next();
+		long seq = rs.getLong(1);
+		rs.close();
+		return seq;
+	}
+
+	/**
+	 * Delete the entries up to and including seq, once every consumer has them
+	 *
+	 * @return the number of entries deleted
+	 * @throws SQLException
+	 */
+	int prune(long seq) throws SQLException {
+		PreparedStatement pstmt = dbm.prepare("delete from CHANGE_LOG where seq <= ?");
+		pstmt.setLong(1, seq);
+		return pstmt.executeUpdate();
+	}
+}
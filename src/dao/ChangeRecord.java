@@ -0,0 +1,77 @@
+package dao;
+
+import java.beans.ConstructorProperties;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One entry of the change log: a row of PATIENT, DOCTOR or CLINIC that was
+ * inserted or updated, or a table that was cleared.
+ *
+ * @author Eli Anderson
+ */
+public class ChangeRecord {
+	public enum Operation {
+		INSERT, UPDATE, CLEAR
+	}
+
+	private final long seq;
+	private final String table;
+	private final Operation operation;
+	private final Integer key;
+	private final List<String> columns;
+	private final Timestamp time;
+
+	@ConstructorProperties({ "seq", "table", "operation", "key", "columns", "time" })
+	public ChangeRecord(long seq, String table, Operation operation, Integer key, List<String> columns, Timestamp time) {
+		this.seq = seq;
+		this.table = table;
+		this.operation = operation;
+		this.key = key;
+		this.columns = Collections.unmodifiableList(columns);
+		this.time = time;
+	}
+
+	/**
+	 * @return the position in the log; later changes have larger numbers
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return the key of the changed row, or null for CLEAR
+	 */
+	public Integer getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the columns an UPDATE changed; empty when the whole row was
+	 * written (INSERT, or an upsert of an existing row)
+	 */
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return when the change was written to the log
+	 */
+	public Timestamp getTime() {
+		return time;
+	}
+
+	public String toString() {
+		return "#" + seq + " " + operation + " " + table + (key == null ? "" : " " + key)
+				+ (columns.isEmpty() ? "" : " " + columns);
+	}
+}
@@ -7,6 +7,10 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 import model.Clinic;
 import model.Patient;
@@ -23,6 +27,26 @@ public class ClinicDAO {
 	private Connection conn;
 	private DatabaseManager dbm;
 
+	static final String INSERT_CMD = "insert into CLINIC(clinicID, clinicName, address, phoneNumber) "
+			+ "values(?, ?, ?, ?)";
+
+	static final String UPDATE_CMD = "update CLINIC set clinicName = ?, address = ?, phoneNumber = ? "
+			+ "where clinicID = ?";
+
+	private static final BatchInserter.Binder<Clinic> INSERT_BINDER = (pstmt, c) -> {
+		pstmt.setInt(1, c.getID());
+		pstmt.setString(2, c.getName());
+		pstmt.setString(3, c.getAddress());
+		pstmt.setString(4, c.getPhoneNum());
+	};
+
+	private static final BatchInserter.Binder<Clinic> UPDATE_BINDER = (pstmt, c) -> {
+		pstmt.setString(1, c.getName());
+		pstmt.setString(2, c.getAddress());
+		pstmt.setString(3, c.getPhoneNum());
+		pstmt.setInt(4, c.getID());
+	};
+
 	public ClinicDAO(Connection conn, DatabaseManager dbm) {
 		this.conn = conn;
 		this.dbm = dbm;
@@ -31,11 +55,10 @@ public class ClinicDAO {
 	/**
 	 * Create the Clinic table via SQL
 	 *
-	 * @param conn
+	 * @param stmt the batch the DDL is added to
 	 * @throws SQLException
 	 */
-	static void create(Connection conn) throws SQLException {
-		Statement stmt = conn.createStatement();
+	static void create(Statement stmt) throws SQLException {
 		String s = "create table CLINIC(\n"
 				+ "clinicName varchar(30) not null,\n"
 				+ "address varchar(50) not null,\n"
@@ -43,7 +66,17 @@ public class ClinicDAO {
 				+ "clinicID int not null,\n"
 				+ "primary key(clinicID)\n"
 				+ ")";
-		stmt.executeUpdate(s);
+		stmt.addBatch(s);
+	}
+
+	/**
+	 * Add the secondary indexes on the Clinic table
+	 *
+	 * @param stmt the batch the DDL is added to
+	 * @throws SQLException
+	 */
+	static void addIndexes(Statement stmt) throws SQLException {
+		stmt.addBatch("create index clinic_name on CLINIC(clinicName)");
 	}
 
 	/**
@@ -53,15 +86,23 @@ public class ClinicDAO {
 	 * @return the Clinic object, or null if not found
 	 */
 	public Clinic find(int clinicID) {
+		long start = Metrics.begin();
 		try {
+			Clinic cached = dbm.getClinicCache().get(clinicID);
+			if (cached != null)
+				return cached;
+
 			String qry = "select clinicName, address, phoneNumber from CLINIC where clinicID = ?";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			PreparedStatement pstmt = dbm.prepare(qry);
 			pstmt.setInt(1, clinicID);
 			ResultSet rs = pstmt.executeQuery();
 
 			// return null if clinic doesn't exist
-			if (!rs.next())
+			if (!rs.next()) {
+				rs.close();
 				return null;
+			}
+			Metrics.row();
 
 			String cname = rs.getString("clinicName");
 			String address = rs.getString("address");
@@ -70,10 +111,15 @@ public class ClinicDAO {
 
 			Clinic clinic = new Clinic(this, clinicID, cname, address, phone);
 
-			return clinic;
+			return dbm.getClinicCache().put(clinicID, clinic);
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error finding clinic", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.find", start);
 		}
 	}
 
@@ -84,31 +130,99 @@ public class ClinicDAO {
     * @return the Clinic object, or null if not found
     */
     public Clinic findByName(String cname) {
+		long start = Metrics.begin();
 		try {
 			String qry = "select clinicID, address, phoneNumber from CLINIC where clinicName = ?";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			PreparedStatement pstmt = dbm.prepare(qry);
 			pstmt.setString(1, cname);
 			ResultSet rs = pstmt.executeQuery();
 
 			// return null if clinic doesn't exist
-			if (!rs.next())
+			if (!rs.next()) {
+				rs.close();
 				return null;
+			}
+			Metrics.row();
 
 			int cid = rs.getInt("clinicID");
 			String address = rs.getString("address");
 			String phone = rs.getString("phoneNumber");
 			rs.close();
 
+			// reuse the already loaded object, if any
+			Clinic cached = dbm.getClinicCache().get(cid);
+			if (cached != null)
+				return cached;
+
 			Clinic clinic = new Clinic(this, cid, cname, address, phone);
 
-			return clinic;
+			return dbm.getClinicCache().put(cid, clinic);
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error finding clinic by name", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.findByName", start);
 		}
-
     }
 
+	/**
+	 * Build a Clinic object from already retrieved column values,
+	 * reusing the loaded object if there is one.
+	 *
+	 * @param cid
+	 * @param cname
+	 * @param address
+	 * @param phone
+	 * @return the canonical Clinic object
+	 */
+	Clinic load(int cid, String cname, String address, String phone) {
+		Clinic cached = dbm.getClinicCache().get(cid);
+		if (cached != null)
+			return cached;
+
+		Clinic clinic = new Clinic(this, cid, cname, address, phone);
+		return dbm.getClinicCache().put(cid, clinic);
+	}
+
+	/**
+	 * Build a Clinic object from the current row of a query that selects
+	 * all of the CLINIC columns.
+	 *
+	 * @param rs
+	 * @return the canonical Clinic object
+	 * @throws SQLException
+	 */
+	Clinic loadRow(ResultSet rs) throws SQLException {
+		Metrics.row();
+		return load(rs.getInt("clinicID"), rs.getString("clinicName"), rs.getString("address"),
+				rs.getString("phoneNumber"));
+	}
+
+	/**
+	 * Stream all clinics in clinicID order, loading one row at a time.
+	 * Close the stream (e.g. with try-with-resources) if it is not read to the end.
+	 *
+	 * @return the Stream
+	 */
+	public Stream<Clinic> streamAll() {
+		long start = Metrics.begin();
+		try {
+			String qry = "select clinicID, clinicName, address, phoneNumber from CLINIC order by clinicID";
+			return new RowCursor<Clinic>(dbm, conn, qry, dbm.getFetchSize(), this::loadRow).stream();
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error streaming clinics", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.streamAll", start);
+		}
+	}
+
 	/**
 	 * Add a new Clinic with the given attributes.
 	 *
@@ -119,26 +233,123 @@ public class ClinicDAO {
 	 * @return the new Clinic object, or null if key already exists
 	 */
 	public Clinic insert(int cid, String cname, String address, String phone) {
+		long start = Metrics.begin();
 		try {
 			// make sure that the clinicID is currently unused
 			if (find(cid) != null)
 				return null;
 
-			String cmd = "insert into CLINIC(clinicID, clinicName, address, phoneNumber) "
-					+ "values(?, ?, ?, ?)";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(INSERT_CMD);
 			pstmt.setInt(1, cid);
 			pstmt.setString(2, cname);
 			pstmt.setString(3, address);
 			pstmt.setString(4, phone);
 			pstmt.executeUpdate();
+			dbm.getChangeLog().inserted("CLINIC", cid);
 
 			Clinic clinic = new Clinic(this, cid, cname, address, phone);
 
-			return clinic;
+			return dbm.getClinicCache().put(cid, clinic);
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error inserting new clinic", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.insert", start);
+		}
+	}
+
+	/**
+	 * Add many new Clinics using JDBC batches. The Clinic objects only carry
+	 * the attribute values, so they may be constructed with a null DAO.
+	 * Existing keys are reported as DUPLICATE rather than checked beforehand.
+	 *
+	 * @param clinics
+	 * @param batchSize rows per round trip
+	 * @param commitInterval rows between commits, or 0 to leave committing to the caller
+	 * @return the result for each clinic, in iteration order
+	 */
+	public List<InsertResult> insertAll(Collection<Clinic> clinics, int batchSize, int commitInterval) {
+		long start = Metrics.begin();
+		try {
+			BatchInserter<Clinic> inserter = new BatchInserter<Clinic>(dbm, INSERT_CMD, INSERT_BINDER)
+					.capture("CLINIC", Clinic::getID);
+			return inserter.run(new ArrayList<Clinic>(clinics), batchSize, commitInterval);
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error inserting clinics", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.insertAll", start);
+		}
+	}
+
+	/**
+	 * Add a Clinic with the given attributes, or overwrite the existing row
+	 * with this clinicID. A previously loaded object for the clinic is
+	 * replaced in the identity map, and should not be used any more.
+	 *
+	 * @param cid
+	 * @param cname
+	 * @param address
+	 * @param phone
+	 * @return the new Clinic object
+	 */
+	public Clinic upsert(int cid, String cname, String address, String phone) {
+		long start = Metrics.begin();
+		try {
+			Clinic clinic = new Clinic(this, cid, cname, address, phone);
+			InsertResult result = BatchInserter.upsert(dbm, INSERT_CMD, INSERT_BINDER, UPDATE_CMD, UPDATE_BINDER, clinic);
+			if (result == InsertResult.UPDATED) {
+				dbm.getClinicCache().remove(cid);
+				dbm.getChangeLog().updated("CLINIC", cid);
+			} else {
+				dbm.getChangeLog().inserted("CLINIC", cid);
+			}
+			return dbm.getClinicCache().put(cid, clinic);
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error upserting clinic", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.upsert", start);
+		}
+	}
+
+	/**
+	 * Add or overwrite many Clinics using JDBC batches (see
+	 * BatchInserter.upsertAll). As with insertAll, the Clinic objects only
+	 * carry the attribute values.
+	 *
+	 * @param clinics
+	 * @param batchSize rows per round trip
+	 * @param commitInterval rows between commits, or 0 to leave committing to the caller
+	 * @return the result for each clinic, in iteration order
+	 */
+	public List<InsertResult> upsertAll(Collection<Clinic> clinics, int batchSize, int commitInterval) {
+		long start = Metrics.begin();
+		try {
+			List<InsertResult> results = BatchInserter.upsertAll(dbm, "CLINIC", Clinic::getID, INSERT_CMD,
+					INSERT_BINDER, UPDATE_CMD, UPDATE_BINDER, new ArrayList<Clinic>(clinics), batchSize, commitInterval);
+			int i = 0;
+			for (Clinic c : clinics)
+				if (results.get(i++) == InsertResult.UPDATED)
+					dbm.getClinicCache().remove(c.getID());
+			return results;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error upserting clinics", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.upsertAll", start);
 		}
 	}
 
@@ -151,15 +362,24 @@ public class ClinicDAO {
 	 */
 
 	public void setName(int cid, String cname) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("CLINIC", "clinicID", cid, "clinicName", cname))
+				return;
+
 			String cmd = "update CLINIC set clinicName = ? where clinicID = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setString(1, cname);
 			pstmt.setInt(2, cid);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing Clinic name", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.setName", start);
 		}
 	}
 
@@ -170,21 +390,130 @@ public class ClinicDAO {
 	 * @return the Collection
 	 */
 	public Collection<Patient> getPatients(int cid) {
+		long start = Metrics.begin();
 		try {
+			// one joined query builds the patients along with their clinics and doctors
 			Collection<Patient> patients = new ArrayList<Patient>();
-			String qry = "select ssn from PATIENT where pCID = ?";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			String qry = PatientDAO.JOINED_QRY + "where p.pCID = ?";
+			PreparedStatement pstmt = dbm.prepare(qry);
 			pstmt.setInt(1, cid);
 			ResultSet rs = pstmt.executeQuery();
+			PatientDAO patientDAO = dbm.getPatientDAO();
 			while (rs.next()) {
-				int ssn = rs.getInt("ssn");
-				patients.add(dbm.findPatient(ssn));
+				patients.add(patientDAO.loadRow(rs));
 			}
 			rs.close();
 			return patients;
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error getting clinic's patients", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.getPatients", start);
+		}
+	}
+
+	/**
+	 * Retrieve one page of the patients in the given clinic, in ssn order:
+	 * the first limit patients with an ssn greater than afterSsn. Pass
+	 * Integer.MIN_VALUE for the first page and the last ssn of a page for
+	 * the next one; the index on (pCID, ssn) makes every page equally cheap.
+	 * Pages are not cached on the model objects.
+	 *
+	 * @param cid
+	 * @param afterSsn
+	 * @param limit
+	 * @return the List, with fewer than limit patients on the last page
+	 */
+	public List<Patient> getPatients(int cid, int afterSsn, int limit) {
+		long start = Metrics.begin();
+		try {
+			return dbm.getPatientDAO().loadPage("pCID", cid, afterSsn, limit);
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error getting page of clinic's patients", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.getPatientsPage", start);
+		}
+	}
+
+	/**
+	 * Load a clinic together with its doctors and their patients, and hand
+	 * the lists to the model objects, so that getDoctors() on the clinic
+	 * and getPatients() on the clinic and on each of its doctors answer
+	 * from memory. Two queries: the doctors with their clinic, then every
+	 * patient of the clinic or of one of its doctors (who may be registered
+	 * at another clinic) with their clinic and doctor. Objects already
+	 * loaded are reused, so the graph shares instances with the identity maps.
+	 *
+	 * @param cid
+	 * @return the Clinic, or null if not found
+	 */
+	public Clinic loadGraph(int cid) {
+		long start = Metrics.begin();
+		try {
+			Clinic clinic = find(cid);
+			if (clinic == null)
+				return null;
+
+			List<Doctor> doctors = new ArrayList<Doctor>();
+			Map<Integer, Collection<Patient>> byDoctor = new HashMap<Integer, Collection<Patient>>();
+			PreparedStatement pstmt = dbm.prepare(DoctorDAO.JOINED_QRY + "where d.dCID = ? order by d.mln");
+			pstmt.setInt(1, cid);
+			ResultSet rs = pstmt.executeQuery();
+			DoctorDAO doctorDAO = dbm.getDoctorDAO();
+			while (rs.next()) {
+				Doctor doctor = doctorDAO.loadRow(rs);
+				doctors.add(doctor);
+				byDoctor.put(doctor.getMLN(), new ArrayList<Patient>());
+			}
+			rs.close();
+
+			List<Patient> patients = new ArrayList<Patient>();
+			// the clinic's patients, then its doctors' patients registered elsewhere.
+			// Two branches, each driven by an index: with an "or" (or the outer
+			// joins of JOINED_QRY in the second branch) Derby scans all of PATIENT
+			String qry = PatientDAO.JOINED_QRY + "where p.pCID = ? union all "
+					+ PatientDAO.JOINED_COLUMNS
+					+ "from DOCTOR d join CLINIC dc on d.dCID = dc.clinicID "
+					+ "join PATIENT p on p.pDID = d.mln "
+					+ "left join CLINIC pc on p.pCID = pc.clinicID "
+					+ "where d.dCID = ? and (p.pCID <> ? or p.pCID is null)";
+			pstmt = dbm.prepare(qry);
+			pstmt.setInt(1, cid);
+			pstmt.setInt(2, cid);
+			pstmt.setInt(3, cid);
+			rs = pstmt.executeQuery();
+			PatientDAO patientDAO = dbm.getPatientDAO();
+			while (rs.next()) {
+				Patient patient = patientDAO.loadRow(rs);
+				Integer pcid = DatabaseManager.getInteger(rs, "pcID");
+				if (pcid != null && pcid == cid)
+					patients.add(patient);
+				Collection<Patient> ofDoctor = byDoctor.get(DatabaseManager.getInteger(rs, "mln"));
+				if (ofDoctor != null)
+					ofDoctor.add(patient);
+			}
+			rs.close();
+
+			clinic.rememberDoctors(doctors);
+			clinic.rememberPatients(patients);
+			for (Doctor doctor : doctors)
+				doctor.rememberPatients(byDoctor.get(doctor.getMLN()));
+			return clinic;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error loading clinic graph", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.loadGraph", start);
 		}
 	}
 
@@ -195,38 +524,139 @@ public class ClinicDAO {
 	 * @return the Collection
 	 */
 	public Collection<Doctor> getDoctors(int cid) {
+		long start = Metrics.begin();
 		try {
+			// one joined query builds the doctors along with their clinic
 			Collection<Doctor> doctors = new ArrayList<Doctor>();
-			String qry = "select mln from DOCTOR where dCID = ?";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			String qry = DoctorDAO.JOINED_QRY + "where d.dCID = ?";
+			PreparedStatement pstmt = dbm.prepare(qry);
 			pstmt.setInt(1, cid);
 			ResultSet rs = pstmt.executeQuery();
+			DoctorDAO doctorDAO = dbm.getDoctorDAO();
 			while (rs.next()) {
-				int mln = rs.getInt("mln");
-				doctors.add(dbm.findDoctor(mln));
+				doctors.add(doctorDAO.loadRow(rs));
 			}
 			rs.close();
 			return doctors;
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error getting clinic's doctors", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.getDoctors", start);
+		}
+	}
+
+	/**
+	 * Retrieve one page of the doctors in the given clinic, in mln order:
+	 * the first limit doctors with an mln greater than afterMln (see
+	 * getPatients(int, int, int)).
+	 *
+	 * @param cid
+	 * @param afterMln
+	 * @param limit
+	 * @return the List, with fewer than limit doctors on the last page
+	 */
+	public List<Doctor> getDoctors(int cid, int afterMln, int limit) {
+		long start = Metrics.begin();
+		try {
+			List<Doctor> doctors = new ArrayList<Doctor>();
+			String qry = DoctorDAO.JOINED_QRY + "where d.dCID = ? and d.mln > ? order by d.mln "
+					+ "fetch first ? rows only";
+			PreparedStatement pstmt = dbm.prepare(qry);
+			pstmt.setInt(1, cid);
+			pstmt.setInt(2, afterMln);
+			pstmt.setInt(3, limit);
+			ResultSet rs = pstmt.executeQuery();
+			DoctorDAO doctorDAO = dbm.getDoctorDAO();
+			while (rs.next()) {
+				doctors.add(doctorDAO.loadRow(rs));
+			}
+			rs.close();
+			return doctors;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error getting page of clinic's doctors", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.getDoctorsPage", start);
+		}
+	}
+
+	/**
+	 * @param cid
+	 * @return the number of patients in the given clinic
+	 */
+	public int countPatients(int cid) {
+		long start = Metrics.begin();
+		try {
+			return dbm.getAggregateCounts().countPatients(cid);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.countPatients", start);
+		}
+	}
+
+	/**
+	 * @param cid
+	 * @return the number of patients in the given clinic for each doctor, by mln
+	 */
+	public Map<Integer, Integer> countPatientsByDoctor(int cid) {
+		long start = Metrics.begin();
+		try {
+			return dbm.getAggregateCounts().countPatientsByDoctor(cid);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.countPatientsByDoctor", start);
+		}
+	}
+
+	/**
+	 * @param cid
+	 * @return the number of doctors in the given clinic for each specialty
+	 */
+	public Map<String, Integer> countDoctorsBySpecialty(int cid) {
+		long start = Metrics.begin();
+		try {
+			return dbm.getAggregateCounts().countDoctorsBySpecialty(cid);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.countDoctorsBySpecialty", start);
 		}
 	}
 
 	public Collection<String> getClinicNames() {
+		long start = Metrics.begin();
 		try {
 			Collection<String> names = new ArrayList<>();
 			String qry = "select clinicName from CLINIC";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			PreparedStatement pstmt = dbm.prepare(qry);
 			ResultSet rs = pstmt.executeQuery();
 			while (rs.next()) {
+				Metrics.row();
 				String name = rs.getString("clinicName");
 				names.add(name);
 			}
 			rs.close();
 			return names;
 		} catch (SQLException e) {
-			throw new RuntimeException("error getting names of clinics");
+			dbm.cleanup();
+			throw new RuntimeException("error getting names of clinics", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ClinicDAO.getClinicNames", start);
 		}
 	}
 	/**
@@ -238,5 +668,6 @@ public class ClinicDAO {
 		Statement stmt = conn.createStatement();
 		String s = "delete from CLINIC";
 		stmt.executeUpdate(s);
+		stmt.close();
 	}
 }
@@ -0,0 +1,146 @@
+package dao;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The result of a ReportEngine run: a summary of each clinic -- its doctor
+ * and patient counts and doctors by specialty, with how long it took and on
+ * which thread -- and the totals over all clinics.
+ *
+ * @author Eli Anderson
+ */
+public class ClinicReport {
+	/**
+	 * Counts for one clinic, or (for the totals) for several merged
+	 */
+	public static class ClinicSummary {
+		private final Integer clinicID;
+		private final String clinicName;
+		private final int doctors;
+		private final int patients;
+		private final Map<String, Integer> doctorsBySpecialty;
+		private final long millis;
+		private final String thread;
+
+		ClinicSummary(Integer clinicID, String clinicName, int doctors, int patients,
+				Map<String, Integer> doctorsBySpecialty, long millis, String thread) {
+			this.clinicID = clinicID;
+			this.clinicName = clinicName;
+			this.doctors = doctors;
+			this.patients = patients;
+			this.doctorsBySpecialty = Collections.unmodifiableMap(doctorsBySpecialty);
+			this.millis = millis;
+			this.thread = thread;
+		}
+
+		/**
+		 * Add up two summaries; the result belongs to no clinic, and its time
+		 * is the sum of both (work done, not time elapsed)
+		 *
+		 * @param other
+		 * @return the merged summary
+		 */
+		ClinicSummary merge(ClinicSummary other) {
+			Map<String, Integer> specialties = new TreeMap<String, Integer>(doctorsBySpecialty);
+			for (Map.Entry<String, Integer> e : other.doctorsBySpecialty.entrySet())
+				specialties.merge(e.getKey(), e.getValue(), Integer::sum);
+			return new ClinicSummary(null, null, doctors + other.doctors, patients + other.patients,
+					specialties, millis + other.millis, null);
+		}
+
+		/**
+		 * @return the clinic, or null for the totals
+		 */
+		public Integer getClinicID() {
+			return clinicID;
+		}
+
+		public String getClinicName() {
+			return clinicName;
+		}
+
+		public int getDoctors() {
+			return doctors;
+		}
+
+		public int getPatients() {
+			return patients;
+		}
+
+		/**
+		 * @return doctors per specialty name, in name order
+		 */
+		public Map<String, Integer> getDoctorsBySpecialty() {
+			return doctorsBySpecialty;
+		}
+
+		/**
+		 * @return milliseconds spent reading the clinic's counts
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * @return the worker thread that read the clinic, or null for the totals
+		 */
+		public String getThread() {
+			return thread;
+		}
+
+		public String toString() {
+			String who = clinicID == null ? "total" : clinicID + " " + clinicName;
+			String s = String.format("%s: %d doctors, %d patients, %s, %d ms", who, doctors, patients,
+					doctorsBySpecialty, millis);
+			return thread == null ? s : s + " on " + thread;
+		}
+	}
+
+	private final List<ClinicSummary> clinics;
+	private final ClinicSummary total;
+	private final int parallelism;
+	private final long millis;
+
+	ClinicReport(List<ClinicSummary> clinics, ClinicSummary total, int parallelism, long millis) {
+		this.clinics = Collections.unmodifiableList(clinics);
+		this.total = total;
+		this.parallelism = parallelism;
+		this.millis = millis;
+	}
+
+	/**
+	 * @return one summary per clinic, in clinicID order
+	 */
+	public List<ClinicSummary> getClinics() {
+		return clinics;
+	}
+
+	public ClinicSummary getTotal() {
+		return total;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @return wall-clock time of the whole run; compare with getTotal().getMillis()
+	 * for the speedup from running clinics in parallel
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("clinic report: %d clinics in %d ms, parallelism %d%n", clinics.size(), millis,
+				parallelism));
+		for (ClinicSummary clinic : clinics)
+			s.append("  ").append(clinic).append(String.format("%n"));
+		s.append("  ").append(total).append(String.format("%n"));
+		return s.toString();
+	}
+}
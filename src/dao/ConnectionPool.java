@@ -0,0 +1,171 @@
+package dao;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.derby.jdbc.EmbeddedDriver;
+
+/**
+ * Fixed-size pool of embedded Derby connections to HealthcareDatabase.
+ * Each call to openSession() borrows one connection and wraps it in its own
+ * DatabaseManager (with its own DAOs and identity maps), so several threads
+ * can work against the database at once. Closing the session returns the
+ * connection, along with its prepared statements, to the pool.
+ *
+ * @author Eli Anderson
+ */
+public class ConnectionPool {
+	private final Driver driver = new EmbeddedDriver();
+	private final String url;
+	private final int size;
+	private final BlockingQueue<StatementCache> idle;
+	private long acquireTimeout;
+	private volatile boolean closed;
+
+	// shared by all sessions of the pool
+	private final Metrics metrics = new Metrics();
+
+	public static final int DEFAULT_SIZE = Runtime.getRuntime().availableProcessors();
+	public static final long DEFAULT_ACQUIRE_TIMEOUT = 5000; // milliseconds
+
+	public ConnectionPool() {
+		this(DEFAULT_SIZE, DEFAULT_ACQUIRE_TIMEOUT);
+	}
+
+	/**
+	 * Open a pool of connections, creating the database if necessary.
+	 *
+	 * @param size number of connections
+	 * @param acquireTimeout how long openSession() waits for a free connection, in milliseconds
+	 */
+	public ConnectionPool(int size, long acquireTimeout) {
+		this(DatabaseManager.DEFAULT_URL, size, acquireTimeout);
+	}
+
+	/**
+	 * Open a pool of connections to the database at the given url.
+	 *
+	 * @param url
+	 * @param size number of connections
+	 * @param acquireTimeout how long openSession() waits for a free connection, in milliseconds
+	 */
+	public ConnectionPool(String url, int size, long acquireTimeout) {
+		this.url = url;
+		this.size = size;
+		this.acquireTimeout = acquireTimeout;
+		this.idle = new ArrayBlockingQueue<StatementCache>(size);
+		for (int i = 0; i < size; i++)
+			idle.add(open());
+	}
+
+	private StatementCache open() {
+		Connection conn = DatabaseManager.connect(driver, url, metrics);
+		return new StatementCache(conn, StatementCache.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Borrow a connection and wrap it in a new session. The session must be
+	 * closed (DatabaseManager.close()) to give the connection back.
+	 *
+	 * @return the session
+	 */
+	public DatabaseManager openSession() {
+		if (closed)
+			throw new IllegalStateException("connection pool is closed");
+
+		StatementCache statements;
+		try {
+			statements = idle.poll(acquireTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted waiting for a database connection", e);
+		}
+		if (statements == null)
+			throw new RuntimeException("timed out waiting for a database connection");
+
+		return new DatabaseManager(this, statements);
+	}
+
+	/**
+	 * Take back a connection from a closed session, discarding any
+	 * uncommitted changes.
+	 *
+	 * @param statements
+	 */
+	void release(StatementCache statements) {
+		try {
+			statements.getConnection().rollback();
+		} catch (SQLException e) {
+			discard(statements);
+			return;
+		}
+
+		if (closed)
+			closeQuietly(statements);
+		else
+			idle.offer(statements);
+	}
+
+	/**
+	 * Drop a connection that is no longer usable and open a replacement.
+	 *
+	 * @param statements
+	 */
+	void discard(StatementCache statements) {
+		closeQuietly(statements);
+		if (!closed)
+			idle.offer(open());
+	}
+
+	/**
+	 * Close the idle connections and shutdown the database.
+	 * Sessions still open at this point are closed as they are released.
+	 */
+	public void close() {
+		closed = true;
+		StatementCache statements;
+		while ((statements = idle.poll()) != null)
+			closeQuietly(statements);
+
+		DatabaseManager.shutdown(driver, url);
+	}
+
+	public String getURL() {
+		return url;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public long getAcquireTimeout() {
+		return acquireTimeout;
+	}
+
+	public void setAcquireTimeout(long acquireTimeout) {
+		this.acquireTimeout = acquireTimeout;
+	}
+
+	/**
+	 * @return the operation metrics of all sessions of this pool
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	private static void closeQuietly(StatementCache statements) {
+		statements.close();
+		try {
+			statements.getConnection().close();
+		} catch (SQLException e) {
+			System.out.println("warning: cannot close pooled connection");
+		}
+	}
+}
@@ -2,7 +2,17 @@ package dao;
 
 import java.sql.Connection;
 import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.MonthDay;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import java.util.Properties;
 import org.apache.derby.jdbc.EmbeddedDriver;
 import model.Doctor;
@@ -17,18 +27,142 @@ import model.Clinic;
 public class DatabaseManager {
 	private Driver driver;
 	private Connection conn;
+	private StatementCache statements;
 	private DoctorDAO doctorDAO;
 	private PatientDAO patientDAO;
 	private ClinicDAO clinicDAO;
 
-	private final String url = "jdbc:derby:HealthcareDatabase";
+	// identity maps, so that each row is loaded into at most one model object
+	private IdentityMap<Patient> patientCache = new IdentityMap<Patient>(DEFAULT_CACHE_SIZE);
+	private IdentityMap<Doctor> doctorCache = new IdentityMap<Doctor>(DEFAULT_CACHE_SIZE);
+	private IdentityMap<Clinic> clinicCache = new IdentityMap<Clinic>(DEFAULT_CACHE_SIZE);
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	// per-clinic counts, maintained alongside the identity maps
+	private AggregateCounts aggregateCounts = new AggregateCounts(this);
+
+	// tuning for the batched insert functions
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int commitInterval = 0;
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	// rows per driver fetch for the streaming functions; 0 is the driver default
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+
+	// when write-through is off, setter changes wait here until commit()
+	private boolean writeThrough = true;
+	private UnitOfWork unitOfWork = new UnitOfWork();
+
+	// codes and canonical names of the doctors' specialties
+	private SpecialtyDictionary specialties = new SpecialtyDictionary(this);
+
+	// inserts, updates and clears waiting to be appended to CHANGE_LOG
+	private ChangeLog changeLog = new ChangeLog(this);
+
+	// when set, setter changes are handed to a background writer instead
+	private WriteBehindQueue writeBehind;
+
+	// backup, compression and statistics, created on first use
+	private MaintenanceService maintenance;
+
+	static final String DEFAULT_URL = "jdbc:derby:HealthcareDatabase";
+
+	private final String url;
+
+	// the pool this manager's connection was borrowed from, or null if it owns it
+	private ConnectionPool pool;
+
+	// set once a pooled session has given its connection back
+	private boolean released;
+
+	// a second connection to a database some other manager owns; closing it leaves Derby running
+	private boolean secondary;
+
+	// per-operation latencies and counts; shared with the pool when pooled
+	private Metrics metrics;
 
 	public DatabaseManager() {
+		this(DEFAULT_URL);
+	}
+
+	/**
+	 * Connect to a database other than HealthcareDatabase, e.g. a scratch
+	 * in-memory one ("jdbc:derby:memory:name")
+	 *
+	 * @param url
+	 */
+	public DatabaseManager(String url) {
+		this.url = url;
 		driver = new EmbeddedDriver();
+		metrics = new Metrics();
+		conn = connect(driver, url, metrics);
+		init(new StatementCache(conn, StatementCache.DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Create a session over a connection borrowed from the given pool.
+	 * The session keeps its own DAOs and identity maps, and must only be
+	 * used by one thread at a time.
+	 *
+	 * @param pool
+	 * @param statements the pooled connection's statement cache
+	 */
+	DatabaseManager(ConnectionPool pool, StatementCache statements) {
+		this.pool = pool;
+		this.url = pool.getURL();
+		this.conn = statements.getConnection();
+		this.metrics = pool.getMetrics();
+		init(statements);
+	}
+
+	/**
+	 * Open another session on the same database, e.g. for a background
+	 * writer. Closing it doesn't shut the database down.
+	 */
+	DatabaseManager openSecondary() {
+		if (pool != null)
+			return pool.openSession();
+		DatabaseManager dbm = new DatabaseManager(url);
+		dbm.secondary = true;
+		return dbm;
+	}
+
+	private void init(StatementCache statements) {
+		this.statements = statements;
+		doctorDAO = new DoctorDAO(conn, this);
+		patientDAO = new PatientDAO(conn, this);
+		clinicDAO = new ClinicDAO(conn, this);
+	}
+
+	/**
+	 * Connect to the database at the given url, creating it if it doesn't exist yet
+	 *
+	 * @param driver
+	 * @param url
+	 * @param metrics where to record the "DatabaseManager.connect" operation
+	 * @return the new Connection, with auto-commit off
+	 */
+	static Connection connect(Driver driver, String url, Metrics metrics) {
+		long start = Metrics.begin();
+		try {
+			return connect(driver, url);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			metrics.end("DatabaseManager.connect", start);
+		}
+	}
 
+	private static Connection connect(Driver driver, String url) {
 		Properties prop = new Properties();
 		prop.put("create", "false");
 
+		Connection conn;
 		// try to connect to an existing database
 		try {
 			conn = driver.connect(url, prop);
@@ -47,23 +181,45 @@ public class DatabaseManager {
 			}
 		}
 
-		doctorDAO = new DoctorDAO(conn, this);
-		patientDAO = new PatientDAO(conn, this);
-		clinicDAO = new ClinicDAO(conn, this);
+		// add indexes etc. introduced since the database was created
+		try {
+			SchemaMigrator.migrate(conn);
+		}
+		catch (SQLException e) {
+			throw new RuntimeException("cannot upgrade database schema", e);
+		}
+		return conn;
 	}
 
 	/**
-	 * Initialize the tables and their constraints in a newly created database
+	 * Open a plain connection to the same database, in auto-commit mode, for
+	 * small writes that must not wait for this session's transaction.
+	 * The caller closes it.
+	 *
+	 * @return the new Connection
+	 * @throws SQLException
+	 */
+	Connection connectAutoCommit() throws SQLException {
+		return new EmbeddedDriver().connect(url, new Properties());
+	}
+
+	/**
+	 * Initialize the tables and their constraints in a newly created database.
+	 * This creates the original (version 0) schema; SchemaMigrator brings it up to date.
+	 * The DDL goes to the database as one batch.
 	 *
 	 * @param conn
 	 * @throws SQLException
 	 */
-	private void create(Connection conn) throws SQLException {
-		doctorDAO.create(conn);
-		patientDAO.create(conn);
-		clinicDAO.create(conn);
-		doctorDAO.addConstraints(conn);
-		patientDAO.addConstraints(conn);
+	private static void create(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		DoctorDAO.create(stmt);
+		PatientDAO.create(stmt);
+		ClinicDAO.create(stmt);
+		DoctorDAO.addConstraints(stmt);
+		PatientDAO.addConstraints(stmt);
+		stmt.executeBatch();
+		stmt.close();
 		conn.commit();
 	}
 
@@ -94,6 +250,72 @@ public class DatabaseManager {
         return clinicDAO.findByName(cname);
     }
 
+	//***************************************************************
+	// Streaming functions -- walk large result sets one row at a time.
+	// The streams hold an open cursor: read them to the end or close them,
+	// preferably with try-with-resources.
+
+	public Stream<Patient> streamPatients() {
+		return patientDAO.streamAll();
+	}
+
+	public Stream<Patient> streamPatientsOfClinic(int cid) {
+		return patientDAO.streamByClinic(cid);
+	}
+
+	public Stream<Patient> streamPatientsOfDoctor(int mln) {
+		return patientDAO.streamByDoctor(mln);
+	}
+
+	public Stream<Doctor> streamDoctors() {
+		return doctorDAO.streamAll();
+	}
+
+	public Stream<Doctor> streamDoctorsOfClinic(int cid) {
+		return doctorDAO.streamByClinic(cid);
+	}
+
+	public Stream<Clinic> streamClinics() {
+		return clinicDAO.streamAll();
+	}
+
+	public void forEachPatient(Consumer<? super Patient> action) {
+		try (Stream<Patient> patients = streamPatients()) {
+			patients.forEach(action);
+		}
+	}
+
+	public void forEachPatientOfClinic(int cid, Consumer<? super Patient> action) {
+		try (Stream<Patient> patients = streamPatientsOfClinic(cid)) {
+			patients.forEach(action);
+		}
+	}
+
+	public void forEachDoctor(Consumer<? super Doctor> action) {
+		try (Stream<Doctor> doctors = streamDoctors()) {
+			doctors.forEach(action);
+		}
+	}
+
+	public void forEachClinic(Consumer<? super Clinic> action) {
+		try (Stream<Clinic> clinics = streamClinics()) {
+			clinics.forEach(action);
+		}
+	}
+
+	/**
+	 * Set the number of rows the driver fetches per trip for the streaming functions
+	 *
+	 * @param fetchSize
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
 	//***************************************************************
 	// Data insertion functions -- create new model object from attributes
 
@@ -101,33 +323,539 @@ public class DatabaseManager {
 		return doctorDAO.insert(mln, dname, specialty, phone, email, c);
 	}
 
-	public Patient insertPatient(int ssn, String pname, String phone, String email, String bDate, Clinic c, Doctor d) {
-		return patientDAO.insert(ssn, pname, phone, email, bDate, c, d);
+	public Patient insertPatient(int ssn, String pname, String email, String phone, String bDate, Clinic c, Doctor d) {
+		return patientDAO.insert(ssn, pname, email, phone, bDate, c, d);
 	}
 
 	public Clinic insertClinic(int cid, String cname, String address, String phone) {
 		return clinicDAO.insert(cid, cname, address, phone);
 	}
 
+	//***************************************************************
+	// Upsert functions -- insert, or overwrite the row if the key exists.
+	// Objects previously loaded for an overwritten row are dropped from the
+	// identity maps and should not be used any more.
+
+	public Doctor upsertDoctor(int mln, String dname, String specialty, String phone, String email, Clinic c) {
+		return doctorDAO.upsert(mln, dname, specialty, phone, email, c);
+	}
+
+	public Patient upsertPatient(int ssn, String pname, String email, String phone, String bDate, Clinic c, Doctor d) {
+		return patientDAO.upsert(ssn, pname, email, phone, bDate, c, d);
+	}
+
+	public Clinic upsertClinic(int cid, String cname, String address, String phone) {
+		return clinicDAO.upsert(cid, cname, address, phone);
+	}
+
+	public List<InsertResult> upsertDoctors(Collection<Doctor> doctors) {
+		return doctorDAO.upsertAll(doctors, batchSize, commitInterval);
+	}
+
+	public List<InsertResult> upsertPatients(Collection<Patient> patients) {
+		return patientDAO.upsertAll(patients, batchSize, commitInterval);
+	}
+
+	public List<InsertResult> upsertClinics(Collection<Clinic> clinics) {
+		return clinicDAO.upsertAll(clinics, batchSize, commitInterval);
+	}
+
+	/**
+	 * Load a clinic with its doctors and each doctor's patients in two
+	 * queries, filling the clinic's and doctors' lists so that walking the
+	 * graph doesn't go back to the database
+	 *
+	 * @param cid
+	 * @return the Clinic, or null if not found
+	 */
+	public Clinic loadClinicGraph(int cid) {
+		return clinicDAO.loadGraph(cid);
+	}
+
+	//***************************************************************
+	// Specialty functions -- indexed lookups by specialty code
+
+	/**
+	 * @param specialty
+	 * @return the doctors with the specialty, in mln order
+	 */
+	public List<Doctor> findDoctorsBySpecialty(String specialty) {
+		return doctorDAO.findBySpecialty(specialty, null);
+	}
+
+	/**
+	 * @param specialty
+	 * @param cid
+	 * @return the clinic's doctors with the specialty, in mln order
+	 */
+	public List<Doctor> findDoctorsBySpecialty(String specialty, int cid) {
+		return doctorDAO.findBySpecialty(specialty, cid);
+	}
+
+	//***************************************************************
+	// Birth date functions -- date ranges evaluated in the database
+
+	/**
+	 * @param cid
+	 * @param from first birth date, inclusive
+	 * @param to last birth date, inclusive
+	 * @return the clinic's patients born between the dates, oldest first
+	 */
+	public List<Patient> findPatientsBornBetween(int cid, LocalDate from, LocalDate to) {
+		return patientDAO.findBornBetween(cid, from, to);
+	}
+
+	/**
+	 * @param cid
+	 * @param age in years
+	 * @return the clinic's patients who are at least age years old today, oldest first
+	 */
+	public List<Patient> findPatientsAtLeast(int cid, int age) {
+		return patientDAO.findBornBetween(cid, LocalDate.of(1, 1, 1), LocalDate.now().minusYears(age));
+	}
+
+	/**
+	 * @param cid
+	 * @param from first day of the year, inclusive
+	 * @param to last day of the year, inclusive; may come before from, to wrap around the new year
+	 * @return the clinic's patients with a birthday in the range, in calendar order
+	 */
+	public List<Patient> findPatientsWithBirthdayBetween(int cid, MonthDay from, MonthDay to) {
+		return patientDAO.findBirthdaysBetween(cid, from, to);
+	}
+
+	/**
+	 * Birth dates that were malformed when the column became a DATE; those
+	 * patients have a null birth date until it is set again. Check after
+	 * opening an old database, to tell the user.
+	 *
+	 * @return the old text by ssn, empty if every date converted
+	 */
+	public Map<Integer, String> getBirthDateRejects() {
+		return patientDAO.findBirthDateRejects();
+	}
+
+	//***************************************************************
+	// Aggregate functions -- counts computed in SQL on first use, then
+	// maintained in memory as this manager inserts and moves rows
+
+	public int countPatients(int cid) {
+		return clinicDAO.countPatients(cid);
+	}
+
+	/**
+	 * @param cid
+	 * @return the number of the clinic's patients of each doctor, by mln
+	 */
+	public Map<Integer, Integer> countPatientsByDoctor(int cid) {
+		return clinicDAO.countPatientsByDoctor(cid);
+	}
+
+	/**
+	 * @param cid
+	 * @return the number of the clinic's doctors in each specialty
+	 */
+	public Map<String, Integer> countDoctorsBySpecialty(int cid) {
+		return clinicDAO.countDoctorsBySpecialty(cid);
+	}
+
+	//***************************************************************
+	// DAO access for cross-table loading within this package
+
+	Connection getConnection() {
+		return conn;
+	}
+
+	PatientDAO getPatientDAO() {
+		return patientDAO;
+	}
+
+	DoctorDAO getDoctorDAO() {
+		return doctorDAO;
+	}
+
+	ClinicDAO getClinicDAO() {
+		return clinicDAO;
+	}
+
+	AggregateCounts getAggregateCounts() {
+		return aggregateCounts;
+	}
+
+	ChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	SpecialtyDictionary getSpecialties() {
+		return specialties;
+	}
+
+	/**
+	 * Read a nullable int column, e.g. a foreign key
+	 *
+	 * @param rs
+	 * @param column
+	 * @return the value, or null if the column is SQL NULL
+	 * @throws SQLException
+	 */
+	static Integer getInteger(ResultSet rs, String column) throws SQLException {
+		int value = rs.getInt(column);
+		return rs.wasNull() ? null : value;
+	}
+
+	/**
+	 * Return a cached PreparedStatement for the given SQL; the DAOs
+	 * use this rather than preparing their own statements.
+	 *
+	 * @param sql
+	 * @return the PreparedStatement
+	 * @throws SQLException
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		// the connection may belong to another session by now
+		if (released)
+			throw new IllegalStateException("session is closed");
+		Metrics.statement();
+		return statements.prepare(sql);
+	}
+
+	/**
+	 * @return the statement cache, for its prepare/hit/open counters
+	 */
+	public StatementCache getStatementCache() {
+		return statements;
+	}
+
+	//***************************************************************
+	// Metrics -- per-operation latency histograms and statement/row/error counts
+
+	/**
+	 * @return a snapshot of the metrics of every DAO operation run so far, by
+	 * operation name; for a pooled session, these cover the whole pool
+	 */
+	public Map<String, OperationSnapshot> metrics() {
+		return metrics.snapshot();
+	}
+
+	/**
+	 * @return the live metrics, e.g. to reset them or register them with JMX
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	//***************************************************************
+	// Identity map access -- also exposes hit/miss counters
+
+	public IdentityMap<Patient> getPatientCache() {
+		return patientCache;
+	}
+
+	public IdentityMap<Doctor> getDoctorCache() {
+		return doctorCache;
+	}
+
+	public IdentityMap<Clinic> getClinicCache() {
+		return clinicCache;
+	}
+
+	/**
+	 * Change the maximum number of objects kept per identity map
+	 *
+	 * @param size
+	 */
+	public void setCacheSize(int size) {
+		patientCache.setCapacity(size);
+		doctorCache.setCapacity(size);
+		clinicCache.setCapacity(size);
+	}
+
+	/**
+	 * Choose how the identity maps pick an entry to evict: least recently
+	 * used (the default) or least frequently used
+	 *
+	 * @param policy
+	 */
+	public void setCachePolicy(IdentityMap.Policy policy) {
+		patientCache.setPolicy(policy);
+		doctorCache.setPolicy(policy);
+		clinicCache.setPolicy(policy);
+	}
+
+	/**
+	 * Forget all loaded objects, so that the next lookups go to the database
+	 */
+	public void clearCaches() {
+		patientCache.clear();
+		doctorCache.clear();
+		clinicCache.clear();
+		aggregateCounts.clear();
+	}
+
+	//***************************************************************
+	// Batched insertion functions -- add many rows in few round trips.
+	// The model objects passed in only carry attribute values and may have a
+	// null DAO; the result list says, row by row, whether each was inserted.
+
+	public List<InsertResult> insertDoctors(Collection<Doctor> doctors) {
+		return doctorDAO.insertAll(doctors, batchSize, commitInterval);
+	}
+
+	public List<InsertResult> insertPatients(Collection<Patient> patients) {
+		return patientDAO.insertAll(patients, batchSize, commitInterval);
+	}
+
+	public List<InsertResult> insertClinics(Collection<Clinic> clinics) {
+		return clinicDAO.insertAll(clinics, batchSize, commitInterval);
+	}
+
+	/**
+	 * Set the number of rows sent per round trip by the batched insert functions
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set how many rows the batched insert functions write between commits;
+	 * 0 (the default) leaves committing to the caller
+	 *
+	 * @param commitInterval
+	 */
+	public void setCommitInterval(int commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+
+	//***************************************************************
+	// Unit-of-work mode -- coalesce setter changes into one UPDATE per row
+
+	/**
+	 * Choose whether model setters update the database immediately (the
+	 * default) or only mark the row dirty until the next flush or commit.
+	 * Turning write-through back on writes out anything pending.
+	 *
+	 * @param writeThrough
+	 */
+	public void setWriteThrough(boolean writeThrough) {
+		if (writeThrough)
+			flush();
+		this.writeThrough = writeThrough;
+	}
+
+	public boolean isWriteThrough() {
+		return writeThrough;
+	}
+
+	/**
+	 * @return the number of rows with changes not yet written to the database
+	 */
+	public int getPendingChanges() {
+		return unitOfWork.size();
+	}
+
+	/**
+	 * Called by the DAOs before updating a single column. When write-through
+	 * is off, the change is recorded for later and the DAO skips its update.
+	 *
+	 * @return true if the change was deferred
+	 */
+	boolean deferUpdate(String table, String keyColumn, int key, String column, Object value) {
+		if (writeBehind != null) {
+			writeBehind.enqueue(table, keyColumn, key, column, value);
+			return true;
+		}
+		changeLog.updated(table, key, column);
+		if (writeThrough)
+			return false;
+		unitOfWork.record(table, keyColumn, key, column, value);
+		return true;
+	}
+
+	/**
+	 * Write pending setter changes (and their change log entries) to the
+	 * database without committing, e.g. so that following queries see them
+	 */
+	public void flush() {
+		if (unitOfWork.isEmpty() && changeLog.isEmpty())
+			return;
+		try {
+			unitOfWork.flush(this);
+			changeLog.flush();
+		}
+		catch(SQLException e) {
+			cleanup();
+			throw new RuntimeException("cannot write pending changes", e);
+		}
+	}
+
+	//***************************************************************
+	// Change log -- incremental deltas for downstream indexes and caches
+
+	/**
+	 * Read the change log after the given position. A consumer keeps the
+	 * seq of the last entry it applied and passes it to the next call.
+	 * Pending changes of this manager are written out first.
+	 *
+	 * @param seq the last sequence number already seen, or 0 for the start of the log
+	 * @param maxBatch entries returned at most
+	 * @return entries in sequence order; empty when the consumer is up to date
+	 */
+	public List<ChangeRecord> changesSince(long seq, int maxBatch) {
+		flush();
+		try {
+			return changeLog.since(seq, maxBatch);
+		}
+		catch(SQLException e) {
+			cleanup();
+			throw new RuntimeException("cannot read change log", e);
+		}
+	}
+
+	/**
+	 * @return the newest sequence number in the change log, e.g. to start
+	 * consuming after a full scan; 0 if the log is empty
+	 */
+	public long lastChangeSeq() {
+		flush();
+		try {
+			return changeLog.lastSeq();
+		}
+		catch(SQLException e) {
+			cleanup();
+			throw new RuntimeException("cannot read change log", e);
+		}
+	}
+
+	/**
+	 * Delete change log entries that every consumer has applied
+	 *
+	 * @param seq the last entry to delete
+	 * @return the number of entries deleted
+	 */
+	public int pruneChanges(long seq) {
+		try {
+			return changeLog.prune(seq);
+		}
+		catch(SQLException e) {
+			cleanup();
+			throw new RuntimeException("cannot prune change log", e);
+		}
+	}
+
+	/**
+	 * Turn change capture off, e.g. for a bulk load that consumers will
+	 * pick up with a full scan, or back on (the default)
+	 *
+	 * @param enabled
+	 */
+	public void setChangeCapture(boolean enabled) {
+		changeLog.setEnabled(enabled);
+	}
+
+	public boolean isChangeCapture() {
+		return changeLog.isEnabled();
+	}
+
+	//***************************************************************
+	// Write-behind mode -- setter changes are committed in the background
+
+	/**
+	 * Hand setter changes to a background writer that commits them in
+	 * groups on a connection of its own. commit() no longer covers them;
+	 * use the queue's sync() or listeners to know when they are durable.
+	 * Pending unit-of-work changes are written out first.
+	 *
+	 * @param capacity changes queued before setters have to wait
+	 * @param maxBatch changes committed together at most
+	 * @param maxDelay milliseconds a change waits for others to share its commit
+	 * @return the queue, for listeners and sync()
+	 */
+	public WriteBehindQueue enableWriteBehind(int capacity, int maxBatch, long maxDelay) {
+		if (writeBehind != null)
+			throw new IllegalStateException("write-behind is already enabled");
+		flush();
+		writeBehind = new WriteBehindQueue(this, capacity, maxBatch, maxDelay);
+		return writeBehind;
+	}
+
+	public WriteBehindQueue enableWriteBehind() {
+		return enableWriteBehind(WriteBehindQueue.DEFAULT_CAPACITY, WriteBehindQueue.DEFAULT_MAX_BATCH,
+				WriteBehindQueue.DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Go back to updating on the caller's connection, after the background
+	 * writer has committed everything still queued
+	 */
+	public void disableWriteBehind() {
+		if (writeBehind == null)
+			return;
+		writeBehind.close();
+		writeBehind = null;
+	}
+
+	/**
+	 * @return the write-behind queue, or null when write-behind is off
+	 */
+	public WriteBehindQueue getWriteBehind() {
+		return writeBehind;
+	}
+
+	//***************************************************************
+	// Maintenance -- online backup, table compression and statistics
+
+	/**
+	 * @return the maintenance service of this database, to configure,
+	 * schedule or run it; it stops when this manager is closed
+	 */
+	public synchronized MaintenanceService getMaintenance() {
+		if (maintenance == null)
+			maintenance = new MaintenanceService(this);
+		return maintenance;
+	}
+
 	//***************************************************************
 	// Utility functions
 
 	/**
-	 * Commit changes since last call to commit
+	 * Commit changes since last call to commit, writing out any pending setter changes first
 	 */
 	public void commit() {
+		flush();
 		try {
 			conn.commit();
+			changeLog.committed();
 		}
 		catch(SQLException e) {
 			throw new RuntimeException("cannot commit database", e);
 		}
 	}
 
+	/**
+	 * @return true if this session has inserted, updated or deleted rows
+	 * since its last commit or rollback
+	 */
+	boolean hasUncommittedChanges() {
+		return changeLog.hasUncommitted() || !unitOfWork.isEmpty();
+	}
+
 	/**
 	 * Abort changes since last call to commit, then close connection
 	 */
 	public void cleanup() {
+		// the operations also count their own failures; counting here too
+		// covers callers that clean up after an error of their own
+		Metrics.error();
+
+		// cached objects may hold changes that are about to be rolled back
+		clearCaches();
+		unitOfWork.clear();
+		changeLog.clear();
+		if (released)
+			return;
+		statements.close();
 		try {
 			conn.rollback();
 			conn.close();
@@ -135,12 +863,35 @@ public class DatabaseManager {
 		catch(SQLException e) {
 			System.out.println("fatal error: cannot cleanup connection");
 		}
+
+		// let the pool replace the connection we just gave up
+		if (pool != null) {
+			released = true;
+			pool.discard(statements);
+		}
 	}
 
 	/**
-	 * Close connection and shutdown database
+	 * Close connection and shutdown database.
+	 * For a pooled session, abort uncommitted changes and return the
+	 * connection to the pool instead.
 	 */
 	public void close() {
+		if (maintenance != null)
+			maintenance.close();
+		disableWriteBehind();
+		unitOfWork.clear();
+		changeLog.clear();
+		if (pool != null) {
+			clearCaches();
+			if (!released) {
+				released = true;
+				pool.release(statements);
+			}
+			return;
+		}
+
+		statements.close();
 		try {
 			conn.close();
 		}
@@ -148,11 +899,21 @@ public class DatabaseManager {
 			throw new RuntimeException("cannot close database connection", e);
 		}
 
-		// Now shutdown the embedded database system -- this is Derby-specific
+		if (!secondary)
+			shutdown(driver, url);
+	}
+
+	/**
+	 * Shutdown the embedded database system -- this is Derby-specific
+	 *
+	 * @param driver
+	 * @param url
+	 */
+	static void shutdown(Driver driver, String url) {
 		try {
 			Properties prop = new Properties();
 			prop.put("shutdown", "true");
-			conn = driver.connect(url, prop);
+			driver.connect(url, prop);
 		} catch (SQLException e) {
 			System.out.println("Derby has shut down successfully");
 		}
@@ -162,12 +923,27 @@ public class DatabaseManager {
 	 * Clear out all data from database (but leave empty tables)
 	 */
 	public void clearTables() {
+		// pending changes are for rows that are about to disappear
+		unitOfWork.clear();
+		long start = Metrics.begin();
 		try {
-			doctorDAO.clear();
+			// children first: deleting doctors while patients still refer to them
+			// makes Derby null out each patient's pDID, which is very slow
 			patientDAO.clear();
+			doctorDAO.clear();
 			clinicDAO.clear();
+			changeLog.cleared("PATIENT");
+			changeLog.cleared("DOCTOR");
+			changeLog.cleared("CLINIC");
+			clearCaches();
 		} catch (SQLException e) {
+			Metrics.error();
 			throw new RuntimeException("cannot clear tables", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			metrics.end("DatabaseManager.clearTables", start);
 		}
 	}
 }
@@ -7,6 +7,10 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import model.Clinic;
 import model.Patient;
@@ -23,6 +27,31 @@ public class DoctorDAO {
 	private Connection conn;
 	private DatabaseManager dbm;
 
+	/**
+	 * Select list for loading doctors together with their clinic in one query;
+	 * callers append the where clause.
+	 */
+	static final String JOINED_QRY = "select d.mln, d.dname, d.specialtyID, d.phone, d.email, "
+			+ "c.clinicID, c.clinicName, c.address, c.phoneNumber "
+			+ "from DOCTOR d join CLINIC c on d.dCID = c.clinicID ";
+
+	static final String INSERT_CMD = "insert into DOCTOR(mln, dname, specialtyID, phone, email, dCID) "
+			+ "values(?, ?, ?, ?, ?, ?)";
+
+	static final String UPDATE_CMD = "update DOCTOR set dname = ?, specialtyID = ?, phone = ?, email = ?, dCID = ? "
+			+ "where mln = ?";
+
+	// not static: binding a specialty looks up its code in this session's dictionary
+	private final BatchInserter.Binder<Doctor> insertBinder = (pstmt, d) -> {
+		pstmt.setInt(1, d.getMLN());
+		bindValues(pstmt, d, 2);
+	};
+
+	private final BatchInserter.Binder<Doctor> updateBinder = (pstmt, d) -> {
+		bindValues(pstmt, d, 1);
+		pstmt.setInt(6, d.getMLN());
+	};
+
 	public DoctorDAO(Connection conn, DatabaseManager dbm) {
 		this.conn = conn;
 		this.dbm = dbm;
@@ -31,35 +60,67 @@ public class DoctorDAO {
 	/**
 	 * Create the Doctor table via SQL
 	 *
-	 * @param conn
+	 * @param stmt the batch the DDL is added to
 	 * @throws SQLException
 	 */
-	static void create(Connection conn) throws SQLException {
-		Statement stmt = conn.createStatement();
+	static void create(Statement stmt) throws SQLException {
 		String s = "create table DOCTOR(\n"
 				+ "mln int not null,\n"
 				+ "dname varchar(50) not null,\n"
-				+ "specialty varchar(30) not null,\n"
+				+ "specialty varchar(30) not null,\n" // a code from SPECIALTY since schema version 4
 				+ "phone varchar(14) not null,\n"
                 + "email varchar(50) not null,\n"
                 + "dCID int not null,\n"
 				+ "primary key(mln)\n"
 				+ ")";
-		stmt.executeUpdate(s);
+		stmt.addBatch(s);
 	}
 
 	/**
 	 * Modify the Doctor table to add foreign key constraints
-     * @param conn
+     * @param stmt the batch the DDL is added to
      * @throws SQLException
      */
-     static void addConstraints(Connection conn) throws SQLException {
-         Statement stmt = conn.createStatement();
+     static void addConstraints(Statement stmt) throws SQLException {
          String s = "alter table DOCTOR add constraint doctor_fk_clinic \n"
                         + "foreign key(dCID) references CLINIC(clinicID)";
-         stmt.executeUpdate(s);
+         stmt.addBatch(s);
      }
 
+	/**
+	 * Add the secondary indexes on the Doctor table: by name, and by clinic
+	 * (with the key, so a clinic's doctors come back in key order)
+	 *
+	 * @param stmt the batch the DDL is added to
+	 * @throws SQLException
+	 */
+	static void addIndexes(Statement stmt) throws SQLException {
+		stmt.addBatch("create index doctor_dname on DOCTOR(dname)");
+		stmt.addBatch("create index doctor_clinic on DOCTOR(dCID, mln)");
+	}
+
+	/**
+	 * Replace the specialty text of every doctor by a code from the
+	 * SPECIALTY table, in place (Derby can't change a column's type, so
+	 * the codes go into a new column and the old one is dropped), and add
+	 * the index for lookups by specialty, alone or within a clinic.
+	 * SPECIALTY must be created earlier in the same batch.
+	 *
+	 * @param stmt the batch the DDL is added to
+	 * @throws SQLException
+	 */
+	static void encodeSpecialty(Statement stmt) throws SQLException {
+		stmt.addBatch("insert into SPECIALTY(name) select distinct specialty from DOCTOR");
+		stmt.addBatch("alter table DOCTOR add column specialtyID int");
+		stmt.addBatch("update DOCTOR set specialtyID = "
+				+ "(select s.specialtyID from SPECIALTY s where s.name = DOCTOR.specialty)");
+		stmt.addBatch("alter table DOCTOR drop column specialty");
+		stmt.addBatch("alter table DOCTOR alter column specialtyID not null");
+		stmt.addBatch("alter table DOCTOR add constraint doctor_fk_specialty "
+				+ "foreign key(specialtyID) references SPECIALTY(specialtyID)");
+		stmt.addBatch("create index doctor_specialty on DOCTOR(specialtyID, dCID, mln)");
+	}
+
 	/**
 	 * Retrieve a Doctor object given its key.
 	 *
@@ -67,30 +128,43 @@ public class DoctorDAO {
 	 * @return the Doctor object, or null if not found
 	 */
 	public Doctor find(int mln) {
+		long start = Metrics.begin();
 		try {
-			String qry = "select dname, specialty, phone, email, dCID from DOCTOR where mln = ?";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			Doctor cached = dbm.getDoctorCache().get(mln);
+			if (cached != null)
+				return cached;
+
+			String qry = "select dname, specialtyID, phone, email, dCID from DOCTOR where mln = ?";
+			PreparedStatement pstmt = dbm.prepare(qry);
 			pstmt.setInt(1, mln);
 			ResultSet rs = pstmt.executeQuery();
 
 			// return null if doctor doesn't exist
-			if (!rs.next())
+			if (!rs.next()) {
+				rs.close();
 				return null;
+			}
+			Metrics.row();
 
 			String dname = rs.getString("dname");
-			String specialty = rs.getString("specialty");
+			String specialty = dbm.getSpecialties().name(rs.getInt("specialtyID"));
             String phone = rs.getString("phone");
             String email = rs.getString("email");
             int cid = rs.getInt("dCID");
 			rs.close();
 
-			Clinic clinic = dbm.findClinic(cid);
-			Doctor doctor = new Doctor(this, mln, dname, specialty, phone, email, clinic);
+			// the clinic is loaded when first asked for
+			Doctor doctor = new Doctor(this, mln, dname, specialty, phone, email, cid);
 
-			return doctor;
+			return dbm.getDoctorCache().put(mln, doctor);
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error finding doctor", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.find", start);
 		}
 	}
 
@@ -101,33 +175,148 @@ public class DoctorDAO {
     * @return the Doctor object, or null if not found
     */
     public Doctor findByName(String dname) {
+        long start = Metrics.begin();
         try {
-            String qry = "select mln, specialty, phone, email, dCID from DOCTOR where dname = ?";
-            PreparedStatement pstmt = conn.prepareStatement(qry);
+            String qry = "select mln, specialtyID, phone, email, dCID from DOCTOR where dname = ?";
+            PreparedStatement pstmt = dbm.prepare(qry);
             pstmt.setString(1, dname);
             ResultSet rs = pstmt.executeQuery();
 
             // return null if doctor doesn't exist
-            if (!rs.next())
-                return null;
+            if (!rs.next()) {
+            	rs.close();
+            	return null;
+            }
+            Metrics.row();
 
             int mln = rs.getInt("mln");
-            String specialty = rs.getString("specialty");
+            String specialty = dbm.getSpecialties().name(rs.getInt("specialtyID"));
             String phone = rs.getString("phone");
             String email = rs.getString("email");
             int cid = rs.getInt("dCID");
             rs.close();
 
-            Clinic clinic = dbm.findClinic(cid);
-            Doctor doctor = new Doctor(this, mln, dname, specialty, phone, email, clinic);
+            // reuse the already loaded object, if any
+            Doctor cached = dbm.getDoctorCache().get(mln);
+            if (cached != null)
+                return cached;
+
+            // the clinic is loaded when first asked for
+            Doctor doctor = new Doctor(this, mln, dname, specialty, phone, email, cid);
 
-            return doctor;
+            return dbm.getDoctorCache().put(mln, doctor);
         } catch (SQLException e) {
             dbm.cleanup();
             throw new RuntimeException("error finding doctor by name", e);
+        } catch (RuntimeException e) {
+            Metrics.error();
+            throw e;
+        } finally {
+            dbm.getMetrics().end("DoctorDAO.findByName", start);
         }
     }
 
+	/**
+	 * Look up a doctor's clinic on first use; see Doctor.getClinic()
+	 *
+	 * @param cid
+	 * @return the Clinic object, or null if not found
+	 */
+	public Clinic findClinic(int cid) {
+		return dbm.findClinic(cid);
+	}
+
+	/**
+	 * Build a Doctor object from already retrieved column values,
+	 * reusing the loaded object if there is one.
+	 *
+	 * @param mln
+	 * @param dname
+	 * @param specialty
+	 * @param phone
+	 * @param email
+	 * @param clinic
+	 * @return the canonical Doctor object
+	 */
+	Doctor load(int mln, String dname, String specialty, String phone, String email, Clinic clinic) {
+		Doctor cached = dbm.getDoctorCache().get(mln);
+		if (cached != null)
+			return cached;
+
+		Doctor doctor = new Doctor(this, mln, dname, specialty, phone, email, clinic);
+		return dbm.getDoctorCache().put(mln, doctor);
+	}
+
+	/**
+	 * Build a Doctor object from the current row of a JOINED_QRY result.
+	 *
+	 * @param rs
+	 * @return the canonical Doctor object
+	 * @throws SQLException
+	 */
+	Doctor loadRow(ResultSet rs) throws SQLException {
+		return loadRow(rs, null);
+	}
+
+	/**
+	 * Build a Doctor object from the current row of a JOINED_QRY result read
+	 * on another session, e.g. to fill this manager's identity maps from a
+	 * background thread; unknown specialties are looked up on that session.
+	 *
+	 * @param rs
+	 * @param session the session rs belongs to, or null for this manager's
+	 * @return the canonical Doctor object
+	 * @throws SQLException
+	 */
+	Doctor loadRow(ResultSet rs, DatabaseManager session) throws SQLException {
+		Metrics.row();
+		Clinic clinic = dbm.getClinicDAO().load(rs.getInt("clinicID"), rs.getString("clinicName"),
+				rs.getString("address"), rs.getString("phoneNumber"));
+		return load(rs.getInt("mln"), rs.getString("dname"), specialty(rs.getInt("specialtyID"), session),
+				rs.getString("phone"), rs.getString("email"), clinic);
+	}
+
+	// the name of a specialty code, read on the given session if it isn't known yet
+	String specialty(int code, DatabaseManager session) throws SQLException {
+		SpecialtyDictionary specialties = dbm.getSpecialties();
+		return session == null ? specialties.name(code) : specialties.name(code, session.getSpecialties());
+	}
+
+	/**
+	 * Stream all doctors in mln order, loading one row at a time.
+	 * Close the stream (e.g. with try-with-resources) if it is not read to the end.
+	 *
+	 * @return the Stream
+	 */
+	public Stream<Doctor> streamAll() {
+		return stream(JOINED_QRY + "order by d.mln");
+	}
+
+	/**
+	 * Stream the doctors of the given clinic in mln order, loading one row at a time.
+	 *
+	 * @param cid
+	 * @return the Stream
+	 */
+	public Stream<Doctor> streamByClinic(int cid) {
+		return stream(JOINED_QRY + "where d.dCID = ? order by d.mln", cid);
+	}
+
+	private Stream<Doctor> stream(String qry, int... params) {
+		long start = Metrics.begin();
+		try {
+			return new RowCursor<Doctor>(dbm, conn, qry, dbm.getFetchSize(), this::loadRow, params).stream();
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error streaming doctors", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.stream", start);
+		}
+	}
+
 	/**
 	 * Add a new Doctor with the given attributes.
 	 *
@@ -140,31 +329,203 @@ public class DoctorDAO {
 	 * @return the new Doctor object, or null if key already exists
 	 */
 	public Doctor insert(int mln, String dname, String specialty, String phone, String email, Clinic clinic) {
+		long start = Metrics.begin();
 		try {
 			// make sure that the medical licence number is currently unused
 			if (find(mln) != null)
 				return null;
 
-			String cmd = "insert into DOCTOR(mln, dname, specialty, phone, email, dCID) "
-					+ "values(?, ?, ?, ?, ?, ?)";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(INSERT_CMD);
 			pstmt.setInt(1, mln);
 			pstmt.setString(2, dname);
-			pstmt.setString(3, specialty);
+			pstmt.setInt(3, dbm.getSpecialties().code(specialty));
 			pstmt.setString(4, phone);
             pstmt.setString(5, email);
             pstmt.setInt(6, clinic.getID());
 			pstmt.executeUpdate();
+			dbm.getAggregateCounts().doctorAdded(clinic.getID(), specialty);
+			dbm.getChangeLog().inserted("DOCTOR", mln);
 
-			Doctor doctor = new Doctor(this, mln, dname, specialty, phone, email, clinic);
+			Doctor doctor = new Doctor(this, mln, dname, dbm.getSpecialties().canonical(specialty), phone, email, clinic);
+
+			// loaded doctor list of the shared clinic is now stale
+			clinic.forgetDoctors();
+			forgetDoctorList(clinic.getID());
 
-			return doctor;
+			return dbm.getDoctorCache().put(mln, doctor);
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error inserting new doctor", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.insert", start);
 		}
 	}
 
+	/**
+	 * Add many new Doctors using JDBC batches. The Doctor objects only carry
+	 * the attribute values, so they may be constructed with a null DAO.
+	 * Existing keys are reported as DUPLICATE rather than checked beforehand.
+	 *
+	 * @param doctors
+	 * @param batchSize rows per round trip
+	 * @param commitInterval rows between commits, or 0 to leave committing to the caller
+	 * @return the result for each doctor, in iteration order
+	 */
+	public List<InsertResult> insertAll(Collection<Doctor> doctors, int batchSize, int commitInterval) {
+		long start = Metrics.begin();
+		try {
+			BatchInserter<Doctor> inserter = new BatchInserter<Doctor>(dbm, INSERT_CMD, insertBinder)
+					.capture("DOCTOR", Doctor::getMLN);
+			List<InsertResult> results = inserter.run(new ArrayList<Doctor>(doctors), batchSize, commitInterval);
+
+			// loaded doctor lists of the affected clinics are now stale
+			forgetDoctorLists(doctors);
+			AggregateCounts counts = dbm.getAggregateCounts();
+			int i = 0;
+			for (Doctor d : doctors) {
+				if (results.get(i++) == InsertResult.INSERTED)
+					counts.doctorAdded(d.getClinic().getID(), d.getSpecialty());
+			}
+
+			return results;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error inserting doctors", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.insertAll", start);
+		}
+	}
+
+	// set the non-key columns, in INSERT_CMD order, starting at parameter first
+	private void bindValues(PreparedStatement pstmt, Doctor d, int first) throws SQLException {
+		pstmt.setString(first, d.getDName());
+		pstmt.setInt(first + 1, dbm.getSpecialties().code(d.getSpecialty()));
+		pstmt.setString(first + 2, d.getPhoneNum());
+		pstmt.setString(first + 3, d.getEmail());
+		pstmt.setInt(first + 4, d.getClinic().getID());
+	}
+
+	/**
+	 * Add a Doctor with the given attributes, or overwrite the existing row
+	 * with this mln. A previously loaded object for the mln is replaced in the
+	 * identity map, and should not be used any more.
+	 *
+	 * @param mln
+	 * @param dname
+	 * @param specialty
+	 * @param phone
+	 * @param email
+	 * @param clinic
+	 * @return the new Doctor object
+	 */
+	public Doctor upsert(int mln, String dname, String specialty, String phone, String email, Clinic clinic) {
+		long start = Metrics.begin();
+		try {
+			Doctor doctor = new Doctor(this, mln, dname, specialty, phone, email, clinic);
+			InsertResult result = BatchInserter.upsert(dbm, INSERT_CMD, insertBinder, UPDATE_CMD, updateBinder, doctor);
+			if (result == InsertResult.UPDATED) {
+				replaced(mln);
+				dbm.getChangeLog().updated("DOCTOR", mln);
+			} else {
+				dbm.getAggregateCounts().doctorAdded(clinic.getID(), specialty);
+				dbm.getChangeLog().inserted("DOCTOR", mln);
+			}
+
+			clinic.forgetDoctors();
+			forgetDoctorList(clinic.getID());
+			return dbm.getDoctorCache().put(mln, doctor);
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error upserting doctor", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.upsert", start);
+		}
+	}
+
+	/**
+	 * Add or overwrite many Doctors using JDBC batches (see
+	 * BatchInserter.upsertAll). As with insertAll, the Doctor objects only
+	 * carry the attribute values.
+	 *
+	 * @param doctors
+	 * @param batchSize rows per round trip
+	 * @param commitInterval rows between commits, or 0 to leave committing to the caller
+	 * @return the result for each doctor, in iteration order
+	 */
+	public List<InsertResult> upsertAll(Collection<Doctor> doctors, int batchSize, int commitInterval) {
+		long start = Metrics.begin();
+		try {
+			List<InsertResult> results = BatchInserter.upsertAll(dbm, "DOCTOR", Doctor::getMLN, INSERT_CMD,
+					insertBinder, UPDATE_CMD, updateBinder, new ArrayList<Doctor>(doctors), batchSize, commitInterval);
+
+			forgetDoctorLists(doctors);
+			AggregateCounts counts = dbm.getAggregateCounts();
+			int i = 0;
+			for (Doctor d : doctors) {
+				InsertResult result = results.get(i++);
+				if (result == InsertResult.UPDATED)
+					replaced(d.getMLN());
+				else if (result == InsertResult.INSERTED)
+					counts.doctorAdded(d.getClinic().getID(), d.getSpecialty());
+			}
+			return results;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error upserting doctors", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.upsertAll", start);
+		}
+	}
+
+	/**
+	 * Drop the loaded doctor list of the clinic with this key, so it is
+	 * re-read on next access. Goes through the identity map, as the object
+	 * a caller holds may be a detached copy of the one that getDoctors()
+	 * is answered from.
+	 *
+	 * @param cid
+	 */
+	public void forgetDoctorList(int cid) {
+		Clinic clinic = dbm.getClinicCache().peek(cid);
+		if (clinic != null)
+			clinic.forgetDoctors();
+	}
+
+	// after a batch: the lists of every clinic the doctors name, both on the
+	// objects given and on the loaded ones
+	private void forgetDoctorLists(Collection<Doctor> doctors) {
+		Set<Integer> clinics = new HashSet<Integer>();
+		for (Doctor d : doctors) {
+			d.getClinic().forgetDoctors();
+			clinics.add(d.getClinic().getID());
+		}
+		for (int cid : clinics)
+			forgetDoctorList(cid);
+	}
+
+	// an upsert overwrote the row: drop the old object and everything counted or listed from it
+	private void replaced(int mln) {
+		Doctor old = dbm.getDoctorCache().get(mln);
+		if (old != null) {
+			old.getClinic().forgetDoctors();
+			dbm.getDoctorCache().remove(mln);
+		}
+		// the old clinic and specialty aren't known without reading them back
+		dbm.getAggregateCounts().clear();
+	}
+
 	/**
 	 * Doctor name was changed in the model object, so propagate the change to the
 	 * database.
@@ -174,15 +535,24 @@ public class DoctorDAO {
 	 */
 
 	public void changeName(int mln, String dname) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("DOCTOR", "mln", mln, "dname", dname))
+				return;
+
 			String cmd = "update DOCTOR set dname = ? where mln = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setString(1, dname);
 			pstmt.setInt(2, mln);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing doctor's name", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.changeName", start);
 		}
 	}
 
@@ -193,15 +563,25 @@ public class DoctorDAO {
 	* @param specialty
 	*/
 	public void changeSpecialty(int mln, String specialty) {
+		long start = Metrics.begin();
 		try {
-			String cmd = "update DOCTOR set specialty = ? where mln = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
-			pstmt.setString(1, specialty);
+			int code = dbm.getSpecialties().code(specialty);
+			if (dbm.deferUpdate("DOCTOR", "mln", mln, "specialtyID", code))
+				return;
+
+			String cmd = "update DOCTOR set specialtyID = ? where mln = ?";
+			PreparedStatement pstmt = dbm.prepare(cmd);
+			pstmt.setInt(1, code);
 			pstmt.setInt(2, mln);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing doctor's specialty", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.changeSpecialty", start);
 		}
 	}
 
@@ -212,15 +592,24 @@ public class DoctorDAO {
 	* @param clinic
 	*/
 	public void changeClinic(int mln, Clinic clinic) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("DOCTOR", "mln", mln, "dCID", clinic.getID()))
+				return;
+
 			String cmd = "update DOCTOR set dCID = ? where mln = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setInt(1, clinic.getID());
 			pstmt.setInt(2, mln);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing doctor's clinic", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.changeClinic", start);
 		}
 	}
 
@@ -231,17 +620,25 @@ public class DoctorDAO {
 	* @param email
 	*/
 	public void changeEmail(int mln, String email) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("DOCTOR", "mln", mln, "email", email))
+				return;
+
 			String cmd = "update DOCTOR set email = ? where mln = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setString(1, email);
 			pstmt.setInt(2, mln);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing doctor's email", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.changeEmail", start);
 		}
-
 	}
 
 	/**
@@ -251,17 +648,80 @@ public class DoctorDAO {
 	 * @param phone
 	 */
 	public void changePhoneNum(int mln, String phone) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("DOCTOR", "mln", mln, "phone", phone))
+				return;
+
 			String cmd = "update DOCTOR set phone = ? where mln = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setString(1, phone);
 			pstmt.setInt(2, mln);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing doctor's phone number", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.changePhoneNum", start);
 		}
+	}
 
+	/**
+	 * Doctor moved to another clinic or specialty in the model object, so
+	 * update the aggregate counts. Takes keys, so that the old clinic needn't
+	 * be loaded.
+	 *
+	 * @param oldClinicID or null
+	 * @param oldSpecialty
+	 * @param clinicID
+	 * @param specialty
+	 */
+	public void moved(Integer oldClinicID, String oldSpecialty, int clinicID, String specialty) {
+		AggregateCounts counts = dbm.getAggregateCounts();
+		if (oldClinicID != null)
+			counts.doctorRemoved(oldClinicID, oldSpecialty);
+		counts.doctorAdded(clinicID, specialty);
+	}
+
+	/**
+	 * Retrieve the doctors with the given specialty, in mln order, using the
+	 * index on (specialtyID, dCID, mln).
+	 *
+	 * @param specialty
+	 * @param cid only doctors of this clinic, or null for all clinics
+	 * @return the doctors; empty for an unknown specialty
+	 */
+	public List<Doctor> findBySpecialty(String specialty, Integer cid) {
+		long start = Metrics.begin();
+		try {
+			List<Doctor> doctors = new ArrayList<Doctor>();
+			Integer code = dbm.getSpecialties().find(specialty);
+			if (code == null)
+				return doctors;
+
+			String qry = JOINED_QRY + "where d.specialtyID = ? " + (cid == null ? "" : "and d.dCID = ? ") + "order by d.mln";
+			PreparedStatement pstmt = dbm.prepare(qry);
+			pstmt.setInt(1, code);
+			if (cid != null)
+				pstmt.setInt(2, cid);
+			ResultSet rs = pstmt.executeQuery();
+			while (rs.next()) {
+				doctors.add(loadRow(rs));
+			}
+			rs.close();
+			return doctors;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error finding doctors by specialty", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.findBySpecialty", start);
+		}
 	}
 
 	/**
@@ -271,23 +731,58 @@ public class DoctorDAO {
 	 * @return the Collection
 	 */
 	public Collection<Patient> getPatients(int mln) {
+		long start = Metrics.begin();
 		try {
+			// one joined query builds the patients along with their clinics and doctor
 			Collection<Patient> patients = new ArrayList<Patient>();
-			String qry = "select ssn from PATIENT where pDID = ?";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			String qry = PatientDAO.JOINED_QRY + "where p.pDID = ?";
+			PreparedStatement pstmt = dbm.prepare(qry);
 			pstmt.setInt(1, mln);
 			ResultSet rs = pstmt.executeQuery();
+			PatientDAO patientDAO = dbm.getPatientDAO();
 			while (rs.next()) {
-				int ssn = rs.getInt("ssn");
-				patients.add(dbm.findPatient(ssn));
+				patients.add(patientDAO.loadRow(rs));
 			}
 			rs.close();
 			return patients;
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error getting doctor's patients", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.getPatients", start);
 		}
 	}
+
+	/**
+	 * Retrieve one page of the patients of the given doctor, in ssn order:
+	 * the first limit patients with an ssn greater than afterSsn. Pass
+	 * Integer.MIN_VALUE for the first page and the last ssn of a page for
+	 * the next one; the index on (pDID, ssn) makes every page equally cheap.
+	 * Pages are not cached on the model objects.
+	 *
+	 * @param mln
+	 * @param afterSsn
+	 * @param limit
+	 * @return the List, with fewer than limit patients on the last page
+	 */
+	public List<Patient> getPatients(int mln, int afterSsn, int limit) {
+		long start = Metrics.begin();
+		try {
+			return dbm.getPatientDAO().loadPage("pDID", mln, afterSsn, limit);
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error getting page of doctor's patients", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("DoctorDAO.getPatientsPage", start);
+		}
+	}
+
 	/**
 	 * Clear all data from the Doctor table.
 	 *
@@ -297,5 +792,6 @@ public class DoctorDAO {
 		Statement stmt = conn.createStatement();
 		String s = "delete from DOCTOR";
 		stmt.executeUpdate(s);
+		stmt.close();
 	}
 }
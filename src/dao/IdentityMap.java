@@ -0,0 +1,234 @@
+package dao;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Bounded identity map from primary key to model object.
+ * Keeps at most one in-memory object per row, evicting an entry once the
+ * capacity is reached: by default the least recently used one (LRU), or
+ * with Policy.LFU the least frequently used one, the least recently used
+ * of those on a tie. LRU adapts quickly when the rows in use change; LFU
+ * keeps a stable set of hot rows from being pushed out by one-off scans.
+ *
+ * @author Eli Anderson
+ */
+public class IdentityMap<V> {
+	public enum Policy {
+		LRU, LFU
+	}
+
+	private final LinkedHashMap<Integer, V> map;
+	private int capacity;
+	private Policy policy = Policy.LRU;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	// for LFU: the use count of each key, and the keys by use count, least recently used first
+	private final Map<Integer, Integer> uses = new HashMap<Integer, Integer>();
+	private final Map<Integer, LinkedHashSet<Integer>> byUses = new HashMap<Integer, LinkedHashSet<Integer>>();
+	private int minUses;
+
+	public IdentityMap(int capacity) {
+		this.capacity = capacity;
+		// access order gives us LRU iteration for free
+		this.map = new LinkedHashMap<Integer, V>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, V> eldest) {
+				// LFU picks its own victim before inserting
+				if (policy == Policy.LRU && size() > IdentityMap.this.capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Look up the object for the given key, counting the hit or miss.
+	 *
+	 * @param key
+	 * @return the cached object, or null if not present
+	 */
+	synchronized V get(int key) {
+		V value = map.get(key);
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+			if (policy == Policy.LFU)
+				used(key);
+		}
+		return value;
+	}
+
+	/**
+	 * Look up the object for the given key without counting a hit or miss,
+	 * for invalidating what is loaded rather than for finding a row.
+	 *
+	 * @param key
+	 * @return the cached object, or null if not present
+	 */
+	synchronized V peek(int key) {
+		return map.get(key);
+	}
+
+	/**
+	 * Register an object under its key. If an object is already registered
+	 * for that key, it is kept and returned so that callers share one instance.
+	 *
+	 * @param key
+	 * @param value
+	 * @return the canonical object for the key
+	 */
+	synchronized V put(int key, V value) {
+		V existing = map.get(key);
+		if (existing != null) {
+			if (policy == Policy.LFU)
+				used(key);
+			return existing;
+		}
+		if (policy == Policy.LRU) {
+			map.put(key, value);
+			return value;
+		}
+
+		if (capacity <= 0) {
+			evictions++;
+			return value;
+		}
+		while (map.size() >= capacity)
+			evictLeastUsed();
+		map.put(key, value);
+		uses.put(key, 1);
+		keysUsed(1).add(key);
+		minUses = 1;
+		return value;
+	}
+
+	synchronized void remove(int key) {
+		map.remove(key);
+		forget(key);
+	}
+
+	synchronized void clear() {
+		map.clear();
+		uses.clear();
+		byUses.clear();
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		// trim down to the new capacity, the entries the policy would evict first
+		while (map.size() > capacity) {
+			if (policy == Policy.LFU) {
+				evictLeastUsed();
+			} else {
+				Integer eldest = map.keySet().iterator().next();
+				map.remove(eldest);
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Choose the eviction policy. Switching to LFU starts every loaded
+	 * entry at one use, in their current recency order.
+	 *
+	 * @param policy
+	 */
+	public synchronized void setPolicy(Policy policy) {
+		if (policy == this.policy)
+			return;
+		this.policy = policy;
+		uses.clear();
+		byUses.clear();
+		if (policy == Policy.LFU && !map.isEmpty()) {
+			LinkedHashSet<Integer> keys = keysUsed(1);
+			for (Integer key : map.keySet()) {
+				uses.put(key, 1);
+				keys.add(key);
+			}
+			minUses = 1;
+		}
+	}
+
+	public synchronized Policy getPolicy() {
+		return policy;
+	}
+
+	// count one more use of a loaded key
+	private void used(int key) {
+		int n = uses.get(key);
+		LinkedHashSet<Integer> keys = byUses.get(n);
+		keys.remove(key);
+		if (keys.isEmpty()) {
+			byUses.remove(n);
+			if (minUses == n)
+				minUses = n + 1;
+		}
+		uses.put(key, n + 1);
+		keysUsed(n + 1).add(key);
+	}
+
+	private void forget(int key) {
+		Integer n = uses.remove(key);
+		if (n == null)
+			return;
+		LinkedHashSet<Integer> keys = byUses.get(n);
+		keys.remove(key);
+		if (keys.isEmpty())
+			byUses.remove(n);
+	}
+
+	private void evictLeastUsed() {
+		LinkedHashSet<Integer> keys = byUses.get(minUses);
+		if (keys == null) {
+			// the least used keys were removed since
+			minUses = Collections.min(byUses.keySet());
+			keys = byUses.get(minUses);
+		}
+		Integer victim = keys.iterator().next();
+		forget(victim);
+		map.remove(victim);
+		evictions++;
+	}
+
+	private LinkedHashSet<Integer> keysUsed(int n) {
+		LinkedHashSet<Integer> keys = byUses.get(n);
+		if (keys == null) {
+			keys = new LinkedHashSet<Integer>();
+			byUses.put(n, keys);
+		}
+		return keys;
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized String toString() {
+		return policy + " size=" + map.size() + "/" + capacity + " hits=" + hits
+				+ " misses=" + misses + " evictions=" + evictions;
+	}
+}
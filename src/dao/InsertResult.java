@@ -0,0 +1,13 @@
+package dao;
+
+/**
+ * Outcome of one row of a batched insert or upsert.
+ *
+ * @author Eli Anderson
+ */
+public enum InsertResult {
+	INSERTED,	// row was added
+	UPDATED,	// key already existed and an upsert overwrote the row
+	DUPLICATE,	// key already exists, row was skipped
+	FAILED		// row was rejected for another reason, e.g. an unknown clinic or doctor
+}
@@ -0,0 +1,147 @@
+package dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * What one maintenance run did: how long the backup took, and for each
+ * table how much space compression gave back to the file system and how
+ * long compressing and re-analyzing it took.
+ *
+ * @author Eli Anderson
+ */
+public class MaintenanceReport {
+	/**
+	 * Results for one table
+	 */
+	public static class TableResult {
+		private final String table;
+		private final long bytesBefore;
+		private final long bytesAfter;
+		private final long compressMillis;
+		private final long statisticsMillis;
+
+		TableResult(String table, long bytesBefore, long bytesAfter, long compressMillis, long statisticsMillis) {
+			this.table = table;
+			this.bytesBefore = bytesBefore;
+			this.bytesAfter = bytesAfter;
+			this.compressMillis = compressMillis;
+			this.statisticsMillis = statisticsMillis;
+		}
+
+		public String getTable() {
+			return table;
+		}
+
+		/**
+		 * @return size of the table and its indexes on disk before compressing
+		 */
+		public long getBytesBefore() {
+			return bytesBefore;
+		}
+
+		public long getBytesAfter() {
+			return bytesAfter;
+		}
+
+		public long getBytesReclaimed() {
+			return bytesBefore - bytesAfter;
+		}
+
+		public long getCompressMillis() {
+			return compressMillis;
+		}
+
+		public long getStatisticsMillis() {
+			return statisticsMillis;
+		}
+
+		public String toString() {
+			return String.format("%s: %d -> %d bytes (%d reclaimed), compress %d ms, statistics %d ms",
+					table, bytesBefore, bytesAfter, getBytesReclaimed(), compressMillis, statisticsMillis);
+		}
+	}
+
+	private final Date started;
+	private String backupDirectory;
+	private long backupMillis;
+	private final List<TableResult> tables = new ArrayList<TableResult>();
+	private final List<String> errors = new ArrayList<String>();
+	private long millis;
+
+	MaintenanceReport(Date started) {
+		this.started = started;
+	}
+
+	void backedUp(String directory, long millis) {
+		backupDirectory = directory;
+		backupMillis = millis;
+	}
+
+	void add(TableResult table) {
+		tables.add(table);
+	}
+
+	void error(String step, Exception e) {
+		errors.add(step + ": " + e.getMessage());
+	}
+
+	void finished(long millis) {
+		this.millis = millis;
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	/**
+	 * @return where the backup went, or null if none was made
+	 */
+	public String getBackupDirectory() {
+		return backupDirectory;
+	}
+
+	public long getBackupMillis() {
+		return backupMillis;
+	}
+
+	public List<TableResult> getTables() {
+		return Collections.unmodifiableList(tables);
+	}
+
+	public long getBytesReclaimed() {
+		long bytes = 0;
+		for (TableResult table : tables)
+			bytes += table.getBytesReclaimed();
+		return bytes;
+	}
+
+	/**
+	 * @return the steps that failed, with the reason; the run goes on after a failed step
+	 */
+	public List<String> getErrors() {
+		return Collections.unmodifiableList(errors);
+	}
+
+	/**
+	 * @return the whole run, including the pauses between steps
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("maintenance at %tF %<tT: %d bytes reclaimed in %d ms%n", started,
+				getBytesReclaimed(), millis));
+		if (backupDirectory != null)
+			s.append(String.format("  backup to %s: %d ms%n", backupDirectory, backupMillis));
+		for (TableResult table : tables)
+			s.append("  ").append(table).append(String.format("%n"));
+		for (String error : errors)
+			s.append("  failed ").append(error).append(String.format("%n"));
+		return s.toString();
+	}
+}
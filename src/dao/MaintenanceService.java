@@ -0,0 +1,277 @@
+package dao;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Background upkeep of the database: an online backup, compression of the
+ * tables (so the space left by clearTables() and deleted rows goes back to
+ * the file system) and fresh optimizer statistics, on a schedule.
+ *
+ * Each run works on a session of its own and commits after every step, so
+ * no lock is held for longer than one step on one table. Between steps it
+ * sleeps in proportion to the step's duration (see setDutyCycle), leaving
+ * the database to foreground work most of the time. In-place compression
+ * (the default) works on rows and pages while other sessions use the
+ * table, and only locks the whole table briefly at the end to truncate the
+ * file; FULL compression rebuilds the table under an exclusive lock, and
+ * is only worth it for tables nobody uses at the time.
+ *
+ * @author Eli Anderson
+ */
+public class MaintenanceService implements AutoCloseable {
+	public enum Compression {
+		NONE, INPLACE, FULL
+	}
+
+	// the tables kept up, in foreign key order
+	private static final String[] TABLES = { "CLINIC", "DOCTOR", "PATIENT", "CHANGE_LOG" };
+
+	private static final String SPACE_QRY =
+			"select sum((numallocatedpages + numfreepages) * pagesize) from table(SYSCS_DIAG.SPACE_TABLE(?, ?)) t";
+
+	private final DatabaseManager owner;
+	private final ScheduledExecutorService scheduler;
+	private final CopyOnWriteArrayList<Consumer<MaintenanceReport>> listeners =
+			new CopyOnWriteArrayList<Consumer<MaintenanceReport>>();
+
+	private volatile String backupDirectory;
+	private volatile Compression compression = Compression.INPLACE;
+	private volatile boolean updateStatistics = true;
+	private volatile double dutyCycle = 0.5;
+	private volatile MaintenanceReport lastReport;
+
+	/**
+	 * @param owner the manager whose database is kept up; runs use a second session on it
+	 */
+	MaintenanceService(DatabaseManager owner) {
+		this.owner = owner;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "dao-maintenance");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	/**
+	 * @param backupDirectory where each run puts a copy of the database
+	 * (replacing the previous one), or null for no backup
+	 */
+	public void setBackupDirectory(String backupDirectory) {
+		this.backupDirectory = backupDirectory;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	public void setUpdateStatistics(boolean updateStatistics) {
+		this.updateStatistics = updateStatistics;
+	}
+
+	/**
+	 * Throttle the runs: with dutyCycle d, every step is followed by a
+	 * pause of (1 - d) / d times its duration. 1 means no pauses; the
+	 * default 0.5 pauses as long as each step took.
+	 *
+	 * @param dutyCycle between 0 (exclusive) and 1
+	 */
+	public void setDutyCycle(double dutyCycle) {
+		if (dutyCycle <= 0 || dutyCycle > 1)
+			throw new IllegalArgumentException("duty cycle must be in (0, 1]: " + dutyCycle);
+		this.dutyCycle = dutyCycle;
+	}
+
+	/**
+	 * Hear about every finished run, on the maintenance thread
+	 */
+	public void addListener(Consumer<MaintenanceReport> listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Consumer<MaintenanceReport> listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the report of the latest finished run, or null if none has finished yet
+	 */
+	public MaintenanceReport getLastReport() {
+		return lastReport;
+	}
+
+	/**
+	 * Run maintenance every period, starting after initialDelay; a run that
+	 * takes longer than the period delays the next one rather than overlapping it
+	 *
+	 * @param initialDelay
+	 * @param period
+	 * @param unit
+	 */
+	public void schedule(long initialDelay, long period, TimeUnit unit) {
+		scheduler.scheduleWithFixedDelay(this::runQuietly, initialDelay, period, unit);
+	}
+
+	/**
+	 * Run maintenance once, now, on the maintenance thread (after any run
+	 * in progress), and wait for the report
+	 *
+	 * @return the report
+	 */
+	public MaintenanceReport runNow() {
+		try {
+			return scheduler.submit(this::run).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted waiting for maintenance", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("maintenance failed", e.getCause());
+		}
+	}
+
+	// a scheduled run must not throw, or the scheduler drops the schedule;
+	// run() reports its own failures, so only a listener can throw here
+	private void runQuietly() {
+		try {
+			run();
+		} catch (RuntimeException e) {
+			// the listener's problem; the report is in lastReport all the same
+		}
+	}
+
+	private MaintenanceReport run() {
+		long start = System.currentTimeMillis();
+		MaintenanceReport report = new MaintenanceReport(new Date(start));
+		DatabaseManager session = null;
+		try {
+			session = owner.openSecondary();
+			Connection conn = session.getConnection();
+			conn.commit();
+			String schema = currentSchema(session);
+
+			String dir = backupDirectory;
+			if (dir != null) {
+				long t = System.currentTimeMillis();
+				try {
+					call(conn, "call SYSCS_UTIL.SYSCS_BACKUP_DATABASE(?)", dir);
+					report.backedUp(dir, System.currentTimeMillis() - t);
+				} catch (SQLException e) {
+					conn.rollback();
+					report.error("backup to " + dir, e);
+				}
+				pause(System.currentTimeMillis() - t);
+			}
+
+			for (String table : TABLES) {
+				try {
+					report.add(maintain(session, schema, table));
+				} catch (SQLException e) {
+					conn.rollback();
+					report.error(table, e);
+				}
+			}
+		} catch (SQLException e) {
+			report.error("connection", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			report.error("run", e);
+		} catch (RuntimeException e) {
+			report.error("run", e);
+		} finally {
+			if (session != null)
+				session.close();
+		}
+
+		report.finished(System.currentTimeMillis() - start);
+		lastReport = report;
+		for (Consumer<MaintenanceReport> listener : listeners)
+			listener.accept(report);
+		return report;
+	}
+
+	private MaintenanceReport.TableResult maintain(DatabaseManager session, String schema, String table)
+			throws SQLException, InterruptedException {
+		Connection conn = session.getConnection();
+		long before = size(session, schema, table);
+
+		long t = System.currentTimeMillis();
+		if (compression == Compression.INPLACE)
+			call(conn, "call SYSCS_UTIL.SYSCS_INPLACE_COMPRESS_TABLE(?, ?, 1, 1, 1)", schema, table);
+		else if (compression == Compression.FULL)
+			call(conn, "call SYSCS_UTIL.SYSCS_COMPRESS_TABLE(?, ?, 1)", schema, table);
+		long compressMillis = System.currentTimeMillis() - t;
+		pause(compressMillis);
+
+		t = System.currentTimeMillis();
+		if (updateStatistics)
+			call(conn, "call SYSCS_UTIL.SYSCS_UPDATE_STATISTICS(?, ?, null)", schema, table);
+		long statisticsMillis = System.currentTimeMillis() - t;
+		pause(statisticsMillis);
+
+		return new MaintenanceReport.TableResult(table, before, size(session, schema, table),
+				compressMillis, statisticsMillis);
+	}
+
+	// run one procedure as its own transaction
+	private static void call(Connection conn, String sql, String... params) throws SQLException {
+		CallableStatement cs = conn.prepareCall(sql);
+		try {
+			for (int i = 0; i < params.length; i++)
+				cs.setString(i + 1, params[i]);
+			cs.execute();
+			conn.commit();
+		} finally {
+			cs.close();
+		}
+	}
+
+	// bytes of the table and its indexes in the database files, free pages included
+	private static long size(DatabaseManager session, String schema, String table) throws SQLException {
+		PreparedStatement pstmt = session.prepare(SPACE_QRY);
+		pstmt.setString(1, schema);
+		pstmt.setString(2, table);
+		ResultSet rs = pstmt.executeQuery();
+		rs.next();
+		long bytes = rs.getLong(1);
+		rs.close();
+		session.getConnection().commit();
+		return bytes;
+	}
+
+	private static String currentSchema(DatabaseManager session) throws SQLException {
+		ResultSet rs = session.prepare("values current schema").executeQuery();
+		rs.next();
+		String schema = rs.getString(1);
+		rs.close();
+		return schema;
+	}
+
+	private void pause(long workMillis) throws InterruptedException {
+		long millis = (long) (workMillis * (1 - dutyCycle) / dutyCycle);
+		if (millis > 0)
+			Thread.sleep(millis);
+	}
+
+	/**
+	 * Cancel the schedule and wait for a run in progress to finish
+	 */
+	public void close() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package dao;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-operation metrics for the DAOs: call, error, statement and row counts
+ * and a latency histogram for each operation name (e.g. "PatientDAO.find").
+ *
+ * A DAO operation brackets its body with begin() and end(); in between,
+ * statement(), row() and error() are counted against every operation open
+ * on the calling thread, so an operation's counts include what its nested
+ * lookups did. An operation that throws counts as failed: each one catches
+ * RuntimeException, calls error() and rethrows, so a closed session or a
+ * failed migration is counted as well as the SQL errors. The bookkeeping
+ * lives in one preallocated object per thread, and recording never allocates.
+ *
+ * Since the per-operation counts are inclusive, adding them up would count
+ * nested work twice; the totals only count outermost operations.
+ *
+ * A standalone DatabaseManager has its own Metrics; the sessions of a
+ * ConnectionPool share the pool's.
+ *
+ * @author Eli Anderson
+ */
+public class Metrics implements MetricsMXBean {
+	// deepest nesting of operations that is tracked; deeper ones are timed but not counted
+	private static final int MAX_DEPTH = 32;
+
+	// running counters of the calling thread, and their values when each open operation began
+	private static class Context {
+		long statements;
+		long rows;
+		long errors;
+		final long[] marks = new long[MAX_DEPTH * 3];
+		int depth;
+	}
+
+	private static final ThreadLocal<Context> CONTEXT = ThreadLocal.withInitial(Context::new);
+
+	private final Map<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+
+	// of the operations not nested in another one
+	private final LongAdder totalCalls = new LongAdder();
+	private final LongAdder totalErrors = new LongAdder();
+	private final LongAdder totalStatements = new LongAdder();
+
+	/**
+	 * Mark the start of an operation on this thread
+	 *
+	 * @return the start time, to pass to end()
+	 */
+	static long begin() {
+		Context ctx = CONTEXT.get();
+		if (ctx.depth < MAX_DEPTH) {
+			int i = ctx.depth * 3;
+			ctx.marks[i] = ctx.statements;
+			ctx.marks[i + 1] = ctx.rows;
+			ctx.marks[i + 2] = ctx.errors;
+		}
+		ctx.depth++;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the operation started by the matching begin()
+	 *
+	 * @param name operation name
+	 * @param start value returned by begin()
+	 */
+	void end(String name, long start) {
+		long nanos = System.nanoTime() - start;
+		Context ctx = CONTEXT.get();
+		ctx.depth--;
+		long statementCount = 0, rowCount = 0;
+		boolean failed = false;
+		if (ctx.depth < MAX_DEPTH) {
+			int i = ctx.depth * 3;
+			statementCount = ctx.statements - ctx.marks[i];
+			rowCount = ctx.rows - ctx.marks[i + 1];
+			failed = ctx.errors != ctx.marks[i + 2];
+		}
+		operation(name).record(nanos, statementCount, rowCount, failed);
+		if (ctx.depth == 0) {
+			totalCalls.increment();
+			if (failed)
+				totalErrors.increment();
+			totalStatements.add(statementCount);
+		}
+	}
+
+	/**
+	 * Count one SQL statement executed (or batch sent) on this thread
+	 */
+	static void statement() {
+		CONTEXT.get().statements++;
+	}
+
+	/**
+	 * Count one row read on this thread
+	 */
+	static void row() {
+		CONTEXT.get().rows++;
+	}
+
+	/**
+	 * Mark the operations open on this thread as failed
+	 */
+	static void error() {
+		CONTEXT.get().errors++;
+	}
+
+	/**
+	 * @param name
+	 * @return the stats for the named operation, created on first use
+	 */
+	public OperationStats operation(String name) {
+		OperationStats stats = operations.get(name);
+		if (stats == null)
+			stats = operations.computeIfAbsent(name, OperationStats::new);
+		return stats;
+	}
+
+	/**
+	 * @return a snapshot of every operation seen so far, by name
+	 */
+	public Map<String, OperationSnapshot> snapshot() {
+		Map<String, OperationSnapshot> result = new TreeMap<String, OperationSnapshot>();
+		for (OperationStats stats : operations.values())
+			result.put(stats.getName(), stats.snapshot());
+		return result;
+	}
+
+	public List<OperationSnapshot> getOperations() {
+		return new ArrayList<OperationSnapshot>(snapshot().values());
+	}
+
+	public long getTotalCalls() {
+		return totalCalls.sum();
+	}
+
+	public long getTotalErrors() {
+		return totalErrors.sum();
+	}
+
+	public long getTotalStatements() {
+		return totalStatements.sum();
+	}
+
+	public void reset() {
+		for (OperationStats stats : operations.values())
+			stats.reset();
+		totalCalls.reset();
+		totalErrors.reset();
+		totalStatements.reset();
+	}
+
+	/**
+	 * Register these metrics with the platform MBean server as
+	 * dao:type=Metrics,name=<name>
+	 *
+	 * @param name
+	 * @return the ObjectName, for unregisterMBean
+	 */
+	public ObjectName registerMBean(String name) {
+		try {
+			ObjectName objectName = new ObjectName("dao:type=Metrics,name=" + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+			return objectName;
+		} catch (JMException e) {
+			throw new RuntimeException("cannot register metrics MBean " + name, e);
+		}
+	}
+
+	public static void unregisterMBean(ObjectName objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			throw new RuntimeException("cannot unregister metrics MBean " + objectName, e);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package dao;
+
+import java.util.List;
+
+/**
+ * JMX view of a Metrics registry, as registered by Metrics.registerMBean
+ *
+ * @author Eli Anderson
+ */
+public interface MetricsMXBean {
+	/**
+	 * @return one snapshot per operation, by name
+	 */
+	List<OperationSnapshot> getOperations();
+
+	/**
+	 * @return calls of operations not nested in another one; the totals
+	 * don't count a nested operation's work twice, unlike a sum over getOperations()
+	 */
+	long getTotalCalls();
+
+	long getTotalErrors();
+
+	long getTotalStatements();
+
+	/**
+	 * Zero all counters and histograms
+	 */
+	void reset();
+}
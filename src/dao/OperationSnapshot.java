@@ -0,0 +1,87 @@
+package dao;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Values of one OperationStats at the time of the snapshot. Latencies are
+ * in nanoseconds; statement and row counts include those of nested calls
+ * (e.g. the clinic and doctor lookups a patient lookup fans out into).
+ *
+ * @author Eli Anderson
+ */
+public class OperationSnapshot {
+	private final String name;
+	private final long calls;
+	private final long errors;
+	private final long statements;
+	private final long rows;
+	private final long meanNanos;
+	private final long p50Nanos;
+	private final long p90Nanos;
+	private final long p99Nanos;
+	private final long maxNanos;
+
+	@ConstructorProperties({ "name", "calls", "errors", "statements", "rows",
+			"meanNanos", "p50Nanos", "p90Nanos", "p99Nanos", "maxNanos" })
+	public OperationSnapshot(String name, long calls, long errors, long statements, long rows,
+			long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+		this.name = name;
+		this.calls = calls;
+		this.errors = errors;
+		this.statements = statements;
+		this.rows = rows;
+		this.meanNanos = meanNanos;
+		this.p50Nanos = p50Nanos;
+		this.p90Nanos = p90Nanos;
+		this.p99Nanos = p99Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCalls() {
+		return calls;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public long getStatements() {
+		return statements;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public long getMeanNanos() {
+		return meanNanos;
+	}
+
+	public long getP50Nanos() {
+		return p50Nanos;
+	}
+
+	public long getP90Nanos() {
+		return p90Nanos;
+	}
+
+	public long getP99Nanos() {
+		return p99Nanos;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	public String toString() {
+		return String.format("%s: %d calls, %d errors, %.1f statements/call, %.1f rows/call, "
+				+ "mean %d us, p50 %d us, p90 %d us, p99 %d us, max %d us",
+				name, calls, errors, calls == 0 ? 0.0 : (double) statements / calls,
+				calls == 0 ? 0.0 : (double) rows / calls, meanNanos / 1000, p50Nanos / 1000,
+				p90Nanos / 1000, p99Nanos / 1000, maxNanos / 1000);
+	}
+}
@@ -0,0 +1,120 @@
+package dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histogram for one DAO operation.
+ *
+ * The histogram is log-linear in the style of HdrHistogram: each power of
+ * two is split into SUB_BUCKETS equal buckets, so recorded latencies are
+ * accurate to within 1/SUB_BUCKETS (12.5%) from nanoseconds up to minutes,
+ * in a fixed array. Recording only does atomic increments and never allocates.
+ *
+ * @author Eli Anderson
+ */
+public class OperationStats {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 42; // about 73 minutes in nanoseconds
+
+	private final String name;
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder statements = new LongAdder();
+	private final LongAdder rows = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+
+	OperationStats(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record one finished call.
+	 *
+	 * @param nanos latency
+	 * @param statementCount statements executed during the call, including nested calls
+	 * @param rowCount rows read during the call, including nested calls
+	 * @param failed whether the call ended in an error
+	 */
+	void record(long nanos, long statementCount, long rowCount, boolean failed) {
+		calls.increment();
+		if (failed)
+			errors.increment();
+		statements.add(statementCount);
+		rows.add(rowCount);
+		totalNanos.add(nanos);
+		buckets.incrementAndGet(bucket(nanos));
+
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+			max = maxNanos.get();
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) Math.max(nanos, 0);
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(nanos), MAX_EXPONENT);
+		int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// largest latency that falls into the given bucket
+	private static long bucketLimit(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * Latency at the given percentile, to the histogram's precision.
+	 *
+	 * @param percentile between 0 and 100
+	 * @return nanoseconds
+	 */
+	public long percentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < buckets.length(); i++)
+			total += buckets.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= Math.max(rank, 1))
+				return Math.min(bucketLimit(i), maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return a consistent-enough copy of the current values
+	 */
+	public OperationSnapshot snapshot() {
+		long n = calls.sum();
+		return new OperationSnapshot(name, n, errors.sum(), statements.sum(), rows.sum(),
+				n == 0 ? 0 : totalNanos.sum() / n, percentile(50), percentile(90), percentile(99), maxNanos.get());
+	}
+
+	void reset() {
+		calls.reset();
+		errors.reset();
+		statements.reset();
+		rows.reset();
+		totalNanos.reset();
+		maxNanos.set(0);
+		for (int i = 0; i < buckets.length(); i++)
+			buckets.set(i, 0);
+	}
+}
@@ -1,10 +1,23 @@
 package dao;
 
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.MonthDay;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
 
 import model.Patient;
 import model.Clinic;
@@ -21,6 +34,41 @@ public class PatientDAO {
 	private Connection conn;
 	private DatabaseManager dbm;
 
+	/**
+	 * Columns read by loadRow(): the patient (p), their clinic (pc), their
+	 * doctor (d) and the doctor's clinic (dc).
+	 */
+	static final String JOINED_COLUMNS = "select p.ssn, p.pname, p.email, p.phone, p.birthDate, "
+			+ "pc.clinicID as pcID, pc.clinicName as pcName, pc.address as pcAddress, pc.phoneNumber as pcPhone, "
+			+ "d.mln, d.dname, d.specialtyID, d.phone as dPhone, d.email as dEmail, "
+			+ "dc.clinicID as dcID, dc.clinicName as dcName, dc.address as dcAddress, dc.phoneNumber as dcPhone ";
+
+	/**
+	 * Select list for loading patients together with their clinic, their doctor
+	 * and the doctor's clinic in one query; callers append the where clause.
+	 * Outer joins, since a patient need not currently have a clinic or doctor.
+	 */
+	static final String JOINED_QRY = JOINED_COLUMNS
+			+ "from PATIENT p left join CLINIC pc on p.pCID = pc.clinicID "
+			+ "left join DOCTOR d on p.pDID = d.mln "
+			+ "left join CLINIC dc on d.dCID = dc.clinicID ";
+
+	static final String INSERT_CMD = "insert into PATIENT(ssn, pname, email, phone, birthDate, pCID, pDID) "
+			+ "values(?, ?, ?, ?, ?, ?, ?)";
+
+	static final String UPDATE_CMD = "update PATIENT set pname = ?, email = ?, phone = ?, birthDate = ?, "
+			+ "pCID = ?, pDID = ? where ssn = ?";
+
+	private static final BatchInserter.Binder<Patient> INSERT_BINDER = (pstmt, p) -> {
+		pstmt.setInt(1, p.getSSN());
+		bindValues(pstmt, p, 2);
+	};
+
+	private static final BatchInserter.Binder<Patient> UPDATE_BINDER = (pstmt, p) -> {
+		bindValues(pstmt, p, 1);
+		pstmt.setInt(7, p.getSSN());
+	};
+
 	public PatientDAO(Connection conn, DatabaseManager dbm) {
 		this.conn = conn;
 		this.dbm = dbm;
@@ -29,39 +77,110 @@ public class PatientDAO {
 	/**
 	 * Create the Patient table via SQL
 	 *
-	 * @param conn
+	 * @param stmt the batch the DDL is added to
 	 * @throws SQLException
 	 */
-	static void create(Connection conn) throws SQLException {
-		Statement stmt = conn.createStatement();
+	static void create(Statement stmt) throws SQLException {
 		String s = "create table PATIENT(\n"
 				+ "ssn int not null,\n"
 				+ "pname varchar(50) not null,\n"
 				+ "email varchar(50) not null,\n"
 				+ "phone varchar(14) not null,\n"
-				+ "birthDate varchar(10) not null,\n" // int yyyy-mm-dd format
+				+ "birthDate varchar(10) not null,\n" // in yyyy-mm-dd format; a DATE since schema version 3
 				+ "pCID int,\n" // patient can be in records but not currently getting treatment
 				+ "pDID int,\n"
 				+ "primary key(ssn)\n"
 				+ ")";
-		stmt.executeUpdate(s);
+		stmt.addBatch(s);
 	}
 
 	/**
 	 * Modify the Patient table to add foreign key constraints
-	 * @param conn
+	 * @param stmt the batch the DDL is added to
 	 * @throws SQLException
      */
-	 static void addConstraints(Connection conn) throws SQLException {
-         Statement stmt = conn.createStatement();
+	 static void addConstraints(Statement stmt) throws SQLException {
          String s1 = "alter table PATIENT add constraint patient_fk_clinic \n"
                         + "foreign key(pCID) references CLINIC(clinicID) on delete set null\n";
          String s2 = "alter table PATIENT add constraint patient_fk_doctor \n"
 				 		+ "foreign key(pDID) references DOCTOR(mln) on delete set null";
-         stmt.executeUpdate(s1);
-         stmt.executeUpdate(s2);
+         stmt.addBatch(s1);
+         stmt.addBatch(s2);
 	 }
 
+	/**
+	 * Add the secondary indexes on the Patient table: by name, and by clinic
+	 * and by doctor (with the key, so child collections come back in key order)
+	 *
+	 * @param stmt the batch the DDL is added to
+	 * @throws SQLException
+	 */
+	static void addIndexes(Statement stmt) throws SQLException {
+		stmt.addBatch("create index patient_pname on PATIENT(pname)");
+		stmt.addBatch("create index patient_clinic on PATIENT(pCID, ssn)");
+		stmt.addBatch("create index patient_doctor on PATIENT(pDID, ssn)");
+	}
+
+	/**
+	 * Turn birthDate from varchar(10) (yyyy-mm-dd) into a DATE column, in
+	 * place: Derby can't change a column's type, so the dates are copied to
+	 * a new column that then takes the old one's name. Also add the index
+	 * for date-range queries within a clinic.
+	 *
+	 * The dates are parsed here rather than with SQL date(), so that one
+	 * malformed legacy value can't fail the migration and with it every
+	 * attempt to open the database. Such rows get a null birthDate, their
+	 * old text is kept in BIRTHDATE_REJECTS (see findBirthDateRejects), and
+	 * the column stays nullable until they are fixed.
+	 *
+	 * @param conn
+	 * @param stmt the batch the remaining DDL is added to
+	 * @throws SQLException
+	 */
+	static void convertBirthDate(Connection conn, Statement stmt) throws SQLException {
+		Statement alter = conn.createStatement();
+		alter.executeUpdate("alter table PATIENT add column birthDay date");
+
+		Map<Integer, String> rejects = new TreeMap<Integer, String>();
+		PreparedStatement update = conn.prepareStatement("update PATIENT set birthDay = ? where ssn = ?");
+		ResultSet rs = alter.executeQuery("select ssn, birthDate from PATIENT");
+		while (rs.next()) {
+			int ssn = rs.getInt(1);
+			String text = rs.getString(2);
+			try {
+				update.setDate(1, Date.valueOf(LocalDate.parse(text.trim())));
+			} catch (DateTimeParseException | NullPointerException e) {
+				rejects.put(ssn, text);
+				continue;
+			}
+			update.setInt(2, ssn);
+			update.addBatch();
+		}
+		rs.close();
+		update.executeBatch();
+		update.close();
+
+		if (!rejects.isEmpty()) {
+			alter.executeUpdate("create table BIRTHDATE_REJECTS(ssn int not null, birthDate varchar(10), "
+					+ "primary key(ssn))");
+			PreparedStatement insert = conn.prepareStatement("insert into BIRTHDATE_REJECTS(ssn, birthDate) values(?, ?)");
+			for (Map.Entry<Integer, String> e : rejects.entrySet()) {
+				insert.setInt(1, e.getKey());
+				insert.setString(2, e.getValue());
+				insert.addBatch();
+			}
+			insert.executeBatch();
+			insert.close();
+		}
+		alter.close();
+
+		stmt.addBatch("alter table PATIENT drop column birthDate");
+		stmt.addBatch("rename column PATIENT.birthDay to birthDate");
+		if (rejects.isEmpty())
+			stmt.addBatch("alter table PATIENT alter column birthDate not null");
+		stmt.addBatch("create index patient_clinic_birth on PATIENT(pCID, birthDate)");
+	}
+
 	/**
 	 * Retrieve a Patient object given its key.
 	 *
@@ -69,32 +188,44 @@ public class PatientDAO {
 	 * @return the Patient object, or null if not found
 	 */
 	public Patient find(int ssn) {
+		long start = Metrics.begin();
 		try {
+			Patient cached = dbm.getPatientCache().get(ssn);
+			if (cached != null)
+				return cached;
+
 			String qry = "select pname, email, phone, birthDate, pCID, pDID from PATIENT where ssn = ?";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			PreparedStatement pstmt = dbm.prepare(qry);
 			pstmt.setInt(1, ssn);
 			ResultSet rs = pstmt.executeQuery();
 
 			// return null if patient doesn't exist
-			if (!rs.next())
+			if (!rs.next()) {
+				rs.close();
 				return null;
+			}
+			Metrics.row();
 
 			String pname = rs.getString("pname");
 			String email = rs.getString("email");
 			String phone = rs.getString("phone");
 			String bDate = rs.getString("birthDate");
-			int cid = rs.getInt("pCID");
-			int mln = rs.getInt("pDID");
+			Integer cid = DatabaseManager.getInteger(rs, "pCID");
+			Integer mln = DatabaseManager.getInteger(rs, "pDID");
 			rs.close();
 
-			Clinic clinic = dbm.findClinic(cid);
-			Doctor doctor = dbm.findDoctor(mln);
-			Patient patient = new Patient(this, ssn, pname, email, phone, bDate, clinic, doctor);
+			// the clinic and doctor are loaded when first asked for
+			Patient patient = Patient.withKeys(this, ssn, pname, email, phone, bDate, cid, mln);
 
-			return patient;
+			return dbm.getPatientCache().put(ssn, patient);
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error finding patient", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.find", start);
 		}
 	}
 
@@ -105,35 +236,311 @@ public class PatientDAO {
     * @return the Patient object, or null if not found
     */
     public Patient findByName(String pname) {
+		long start = Metrics.begin();
 		try {
 			String qry = "select ssn, email, phone, birthDate, pCID, pDID from PATIENT where pname = ?";
-			PreparedStatement pstmt = conn.prepareStatement(qry);
+			PreparedStatement pstmt = dbm.prepare(qry);
 			pstmt.setString(1, pname);
 			ResultSet rs = pstmt.executeQuery();
 
 			// return null if patient doesn't exist
-			if (!rs.next())
+			if (!rs.next()) {
+				rs.close();
 				return null;
+			}
+			Metrics.row();
 
 			int ssn = rs.getInt("ssn");
 			String email = rs.getString("email");
 			String phone = rs.getString("phone");
 			String bDate = rs.getString("birthDate");
-			int cid = rs.getInt("pCID");
-			int mln = rs.getInt("pDID");
+			Integer cid = DatabaseManager.getInteger(rs, "pCID");
+			Integer mln = DatabaseManager.getInteger(rs, "pDID");
 			rs.close();
 
-			Clinic clinic = dbm.findClinic(cid);
-			Doctor doctor = dbm.findDoctor(mln);
-			Patient patient = new Patient(this, ssn, pname, email, phone, bDate, clinic, doctor);
+			// reuse the already loaded object, if any
+			Patient cached = dbm.getPatientCache().get(ssn);
+			if (cached != null)
+				return cached;
+
+			// the clinic and doctor are loaded when first asked for
+			Patient patient = Patient.withKeys(this, ssn, pname, email, phone, bDate, cid, mln);
 
-			return patient;
+			return dbm.getPatientCache().put(ssn, patient);
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error finding patient by name", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.findByName", start);
 		}
     }
 
+	/**
+	 * Look up a patient's clinic on first use; see Patient.getClinic()
+	 *
+	 * @param cid
+	 * @return the Clinic object, or null if not found
+	 */
+	public Clinic findClinic(int cid) {
+		return dbm.findClinic(cid);
+	}
+
+	/**
+	 * Look up a patient's doctor on first use; see Patient.getDoctor()
+	 *
+	 * @param mln
+	 * @return the Doctor object, or null if not found
+	 */
+	public Doctor findDoctor(int mln) {
+		return dbm.findDoctor(mln);
+	}
+
+	/**
+	 * Build a Patient object from the current row of a JOINED_QRY result,
+	 * reusing already loaded patients, clinics and doctors.
+	 *
+	 * @param rs
+	 * @return the canonical Patient object
+	 * @throws SQLException
+	 */
+	Patient loadRow(ResultSet rs) throws SQLException {
+		return loadRow(rs, null);
+	}
+
+	/**
+	 * Build a Patient object from the current row of a JOINED_QRY result read
+	 * on another session (see DoctorDAO.loadRow(ResultSet, DatabaseManager)).
+	 *
+	 * @param rs
+	 * @param session the session rs belongs to, or null for this manager's
+	 * @return the canonical Patient object
+	 * @throws SQLException
+	 */
+	Patient loadRow(ResultSet rs, DatabaseManager session) throws SQLException {
+		Metrics.row();
+		int ssn = rs.getInt("ssn");
+		Patient cached = dbm.getPatientCache().get(ssn);
+		if (cached != null)
+			return cached;
+
+		ClinicDAO clinicDAO = dbm.getClinicDAO();
+		Clinic clinic = null;
+		int cid = rs.getInt("pcID");
+		if (!rs.wasNull())
+			clinic = clinicDAO.load(cid, rs.getString("pcName"), rs.getString("pcAddress"), rs.getString("pcPhone"));
+
+		Doctor doctor = null;
+		int mln = rs.getInt("mln");
+		if (!rs.wasNull()) {
+			Clinic dClinic = clinicDAO.load(rs.getInt("dcID"), rs.getString("dcName"),
+					rs.getString("dcAddress"), rs.getString("dcPhone"));
+			DoctorDAO doctorDAO = dbm.getDoctorDAO();
+			doctor = doctorDAO.load(mln, rs.getString("dname"), doctorDAO.specialty(rs.getInt("specialtyID"), session),
+					rs.getString("dPhone"), rs.getString("dEmail"), dClinic);
+		}
+
+		Patient patient = new Patient(this, ssn, rs.getString("pname"), rs.getString("email"),
+				rs.getString("phone"), rs.getString("birthDate"), clinic, doctor);
+		return dbm.getPatientCache().put(ssn, patient);
+	}
+
+	/**
+	 * Retrieve the patients of a clinic born between two dates, oldest
+	 * first. The (pCID, birthDate) index finds them without reading the
+	 * clinic's other patients.
+	 *
+	 * @param cid
+	 * @param from first birth date, inclusive
+	 * @param to last birth date, inclusive
+	 * @return the patients
+	 */
+	public List<Patient> findBornBetween(int cid, LocalDate from, LocalDate to) {
+		long start = Metrics.begin();
+		try {
+			String qry = JOINED_QRY + "where p.pCID = ? and p.birthDate between ? and ? order by p.birthDate, p.ssn";
+			PreparedStatement pstmt = dbm.prepare(qry);
+			pstmt.setInt(1, cid);
+			pstmt.setDate(2, Date.valueOf(from));
+			pstmt.setDate(3, Date.valueOf(to));
+			return loadAll(pstmt);
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error finding patients by birth date", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.findBornBetween", start);
+		}
+	}
+
+	/**
+	 * Retrieve the patients of a clinic whose birthday (in any year) falls
+	 * between two days of the year, in calendar order. A range whose end
+	 * comes before its start wraps around the new year.
+	 *
+	 * @param cid
+	 * @param from first day, inclusive
+	 * @param to last day, inclusive
+	 * @return the patients
+	 */
+	public List<Patient> findBirthdaysBetween(int cid, MonthDay from, MonthDay to) {
+		long start = Metrics.begin();
+		try {
+			String day = "(month(p.birthDate) * 100 + day(p.birthDate))";
+			String range = from.isAfter(to) ? "(" + day + " >= ? or " + day + " <= ?)" : day + " between ? and ?";
+			String qry = JOINED_QRY + "where p.pCID = ? and " + range + " order by " + day + ", p.ssn";
+			PreparedStatement pstmt = dbm.prepare(qry);
+			pstmt.setInt(1, cid);
+			pstmt.setInt(2, from.getMonthValue() * 100 + from.getDayOfMonth());
+			pstmt.setInt(3, to.getMonthValue() * 100 + to.getDayOfMonth());
+			return loadAll(pstmt);
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error finding patients by birthday", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.findBirthdaysBetween", start);
+		}
+	}
+
+	/**
+	 * @return the birth dates the DATE conversion couldn't parse, as text by
+	 * ssn; empty if there were none
+	 */
+	public Map<Integer, String> findBirthDateRejects() {
+		long start = Metrics.begin();
+		try {
+			Map<Integer, String> rejects = new TreeMap<Integer, String>();
+			ResultSet tables = conn.getMetaData().getTables(null, null, "BIRTHDATE_REJECTS", null);
+			boolean exists = tables.next();
+			tables.close();
+			if (!exists)
+				return rejects;
+
+			ResultSet rs = dbm.prepare("select ssn, birthDate from BIRTHDATE_REJECTS").executeQuery();
+			while (rs.next()) {
+				Metrics.row();
+				rejects.put(rs.getInt(1), rs.getString(2));
+			}
+			rs.close();
+			return rejects;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error reading rejected birth dates", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.findBirthDateRejects", start);
+		}
+	}
+
+	private List<Patient> loadAll(PreparedStatement pstmt) throws SQLException {
+		List<Patient> patients = new ArrayList<Patient>();
+		ResultSet rs = pstmt.executeQuery();
+		while (rs.next())
+			patients.add(loadRow(rs));
+		rs.close();
+		return patients;
+	}
+
+	/**
+	 * Load one page of the patients with the given parent (pCID or pDID),
+	 * in ssn order. Derby sorts the whole outer-joined result before
+	 * applying "fetch first", so the page's key range is found first from
+	 * the (parent, ssn) index alone, and only that range is joined.
+	 *
+	 * @param parentColumn pCID or pDID
+	 * @param parent
+	 * @param afterSsn
+	 * @param limit
+	 * @return the page
+	 * @throws SQLException
+	 */
+	List<Patient> loadPage(String parentColumn, int parent, int afterSsn, int limit) throws SQLException {
+		String keyQry = "select ssn from PATIENT where " + parentColumn + " = ? and ssn > ? "
+				+ "order by ssn fetch first ? rows only";
+		PreparedStatement pstmt = dbm.prepare(keyQry);
+		pstmt.setInt(1, parent);
+		pstmt.setInt(2, afterSsn);
+		pstmt.setInt(3, limit);
+		ResultSet rs = pstmt.executeQuery();
+		int lastSsn = afterSsn;
+		boolean empty = true;
+		while (rs.next()) {
+			lastSsn = rs.getInt(1);
+			empty = false;
+		}
+		rs.close();
+
+		List<Patient> patients = new ArrayList<Patient>();
+		if (empty)
+			return patients;
+
+		String qry = JOINED_QRY + "where p." + parentColumn + " = ? and p.ssn > ? and p.ssn <= ? order by p.ssn";
+		pstmt = dbm.prepare(qry);
+		pstmt.setInt(1, parent);
+		pstmt.setInt(2, afterSsn);
+		pstmt.setInt(3, lastSsn);
+		rs = pstmt.executeQuery();
+		while (rs.next()) {
+			patients.add(loadRow(rs));
+		}
+		rs.close();
+		return patients;
+	}
+
+	/**
+	 * Stream all patients in ssn order, loading one row at a time.
+	 * Close the stream (e.g. with try-with-resources) if it is not read to the end.
+	 *
+	 * @return the Stream
+	 */
+	public Stream<Patient> streamAll() {
+		return stream(JOINED_QRY + "order by p.ssn");
+	}
+
+	/**
+	 * Stream the patients of the given clinic in ssn order, loading one row at a time.
+	 *
+	 * @param cid
+	 * @return the Stream
+	 */
+	public Stream<Patient> streamByClinic(int cid) {
+		return stream(JOINED_QRY + "where p.pCID = ? order by p.ssn", cid);
+	}
+
+	/**
+	 * Stream the patients of the given doctor in ssn order, loading one row at a time.
+	 *
+	 * @param mln
+	 * @return the Stream
+	 */
+	public Stream<Patient> streamByDoctor(int mln) {
+		return stream(JOINED_QRY + "where p.pDID = ? order by p.ssn", mln);
+	}
+
+	private Stream<Patient> stream(String qry, int... params) {
+		long start = Metrics.begin();
+		try {
+			return new RowCursor<Patient>(dbm, conn, qry, dbm.getFetchSize(), this::loadRow, params).stream();
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error streaming patients", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.stream", start);
+		}
+	}
+
 	/**
 	 * Add a new Patient with the given attributes.
 	 *
@@ -146,32 +553,256 @@ public class PatientDAO {
 	 * @return the new Patient object, or null if key already exists
 	 */
 	public Patient insert(int ssn, String pname, String email, String phone, String birthDate, Clinic clinic, Doctor doctor) {
+		long start = Metrics.begin();
 		try {
 			// make sure that the dept, num pair is currently unused
 			if (find(ssn) != null)
 				return null;
 
-			String cmd = "insert into PATIENT(ssn, pname, email, phone, birthDate, pCID, pDID) "
-					+ "values(?, ?, ?, ?, ?, ?, ?)";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(INSERT_CMD);
 			pstmt.setInt(1, ssn);
 			pstmt.setString(2, pname);
 			pstmt.setString(3, email);
 			pstmt.setString(4, phone);
-			pstmt.setString(5, birthDate);
+			pstmt.setDate(5, Date.valueOf(birthDate));
 			pstmt.setInt(6, clinic.getID());
 			pstmt.setInt(7, doctor.getMLN());
 			pstmt.executeUpdate();
+			dbm.getAggregateCounts().patientAdded(clinic.getID(), doctor.getMLN());
+			dbm.getChangeLog().inserted("PATIENT", ssn);
 
 			Patient patient = new Patient(this, ssn, pname, email, phone, birthDate, clinic, doctor);
 
-			return patient;
+			// loaded patient lists of the shared clinic and doctor are now stale
+			clinic.forgetPatients();
+			doctor.forgetPatients();
+			forgetPatientLists(clinic.getID(), doctor.getMLN());
+
+			return dbm.getPatientCache().put(ssn, patient);
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error inserting new patient", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.insert", start);
+		}
+	}
+
+	/**
+	 * Add many new Patients using JDBC batches. The Patient objects only carry
+	 * the attribute values, so they may be constructed with a null DAO.
+	 * Existing keys are reported as DUPLICATE rather than checked beforehand.
+	 *
+	 * @param patients
+	 * @param batchSize rows per round trip
+	 * @param commitInterval rows between commits, or 0 to leave committing to the caller
+	 * @return the result for each patient, in iteration order
+	 */
+	public List<InsertResult> insertAll(Collection<Patient> patients, int batchSize, int commitInterval) {
+		long start = Metrics.begin();
+		try {
+			BatchInserter<Patient> inserter = new BatchInserter<Patient>(dbm, INSERT_CMD, INSERT_BINDER)
+					.capture("PATIENT", Patient::getSSN);
+			List<InsertResult> results = inserter.run(new ArrayList<Patient>(patients), batchSize, commitInterval);
+
+			// loaded patient lists of the affected clinics and doctors are now stale
+			forgetPatientLists(patients);
+			AggregateCounts counts = dbm.getAggregateCounts();
+			int i = 0;
+			for (Patient p : patients) {
+				if (results.get(i++) == InsertResult.INSERTED)
+					counts.patientAdded(clinicID(p.getClinic()), doctorID(p.getDoctor()));
+			}
+
+			return results;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error inserting patients", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.insertAll", start);
+		}
+	}
+
+	// set the non-key columns, in INSERT_CMD order, starting at parameter first
+	private static void bindValues(PreparedStatement pstmt, Patient p, int first) throws SQLException {
+		pstmt.setString(first, p.getPName());
+		pstmt.setString(first + 1, p.getEmail());
+		pstmt.setString(first + 2, p.getPhoneNum());
+		pstmt.setDate(first + 3, Date.valueOf(p.getBirthDate()));
+		if (p.getClinic() == null)
+			pstmt.setNull(first + 4, Types.INTEGER);
+		else
+			pstmt.setInt(first + 4, p.getClinic().getID());
+		if (p.getDoctor() == null)
+			pstmt.setNull(first + 5, Types.INTEGER);
+		else
+			pstmt.setInt(first + 5, p.getDoctor().getMLN());
+	}
+
+	/**
+	 * Add a Patient with the given attributes, or overwrite the existing row
+	 * with this ssn. A previously loaded object for the ssn is replaced in the
+	 * identity map, and should not be used any more.
+	 *
+	 * @param ssn
+	 * @param pname
+	 * @param email
+	 * @param phone
+	 * @param birthDate
+	 * @param clinic may be null
+	 * @param doctor may be null
+	 * @return the new Patient object
+	 */
+	public Patient upsert(int ssn, String pname, String email, String phone, String birthDate, Clinic clinic, Doctor doctor) {
+		long start = Metrics.begin();
+		try {
+			Patient patient = new Patient(this, ssn, pname, email, phone, birthDate, clinic, doctor);
+			InsertResult result = BatchInserter.upsert(dbm, INSERT_CMD, INSERT_BINDER, UPDATE_CMD, UPDATE_BINDER, patient);
+			if (result == InsertResult.UPDATED) {
+				replaced(ssn);
+				dbm.getChangeLog().updated("PATIENT", ssn);
+			} else {
+				dbm.getAggregateCounts().patientAdded(clinicID(clinic), doctorID(doctor));
+				dbm.getChangeLog().inserted("PATIENT", ssn);
+			}
+
+			if (clinic != null)
+				clinic.forgetPatients();
+			if (doctor != null)
+				doctor.forgetPatients();
+			forgetPatientLists(clinicID(clinic), doctorID(doctor));
+			return dbm.getPatientCache().put(ssn, patient);
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error upserting patient", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.upsert", start);
+		}
+	}
+
+	/**
+	 * Add or overwrite many Patients using JDBC batches (see
+	 * BatchInserter.upsertAll). As with insertAll, the Patient objects only
+	 * carry the attribute values.
+	 *
+	 * @param patients
+	 * @param batchSize rows per round trip
+	 * @param commitInterval rows between commits, or 0 to leave committing to the caller
+	 * @return the result for each patient, in iteration order
+	 */
+	public List<InsertResult> upsertAll(Collection<Patient> patients, int batchSize, int commitInterval) {
+		long start = Metrics.begin();
+		try {
+			List<InsertResult> results = BatchInserter.upsertAll(dbm, "PATIENT", Patient::getSSN, INSERT_CMD,
+					INSERT_BINDER, UPDATE_CMD, UPDATE_BINDER, new ArrayList<Patient>(patients), batchSize, commitInterval);
+
+			forgetPatientLists(patients);
+			AggregateCounts counts = dbm.getAggregateCounts();
+			int i = 0;
+			for (Patient p : patients) {
+				InsertResult result = results.get(i++);
+				if (result == InsertResult.UPDATED)
+					replaced(p.getSSN());
+				else if (result == InsertResult.INSERTED)
+					counts.patientAdded(clinicID(p.getClinic()), doctorID(p.getDoctor()));
+			}
+			return results;
+		} catch (SQLException e) {
+			dbm.cleanup();
+			throw new RuntimeException("error upserting patients", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.upsertAll", start);
 		}
 	}
 
+	/**
+	 * Drop the loaded patient lists of the clinic and doctor with these keys,
+	 * so they are re-read on next access. Goes through the identity maps, as
+	 * the objects a caller holds may be detached copies of the ones that
+	 * getPatients() is answered from.
+	 *
+	 * @param cid or null
+	 * @param mln or null
+	 */
+	public void forgetPatientLists(Integer cid, Integer mln) {
+		Clinic clinic = cid == null ? null : dbm.getClinicCache().peek(cid);
+		if (clinic != null)
+			clinic.forgetPatients();
+		Doctor doctor = mln == null ? null : dbm.getDoctorCache().peek(mln);
+		if (doctor != null)
+			doctor.forgetPatients();
+	}
+
+	// after a batch: the lists of every clinic and doctor the patients name,
+	// both on the objects given and on the loaded ones
+	private void forgetPatientLists(Collection<Patient> patients) {
+		Set<Integer> clinics = new HashSet<Integer>();
+		Set<Integer> doctors = new HashSet<Integer>();
+		for (Patient p : patients) {
+			if (p.getClinic() != null) {
+				p.getClinic().forgetPatients();
+				clinics.add(p.getClinic().getID());
+			}
+			if (p.getDoctor() != null) {
+				p.getDoctor().forgetPatients();
+				doctors.add(p.getDoctor().getMLN());
+			}
+		}
+		for (int cid : clinics)
+			forgetPatientLists(cid, null);
+		for (int mln : doctors)
+			forgetPatientLists(null, mln);
+	}
+
+	// an upsert overwrote the row: drop the old object and everything counted or listed from it
+	private void replaced(int ssn) {
+		Patient old = dbm.getPatientCache().get(ssn);
+		if (old != null) {
+			if (old.getClinic() != null)
+				old.getClinic().forgetPatients();
+			if (old.getDoctor() != null)
+				old.getDoctor().forgetPatients();
+			dbm.getPatientCache().remove(ssn);
+		}
+		// the old clinic and doctor aren't known without reading them back
+		dbm.getAggregateCounts().clear();
+	}
+
+	/**
+	 * Patient moved to another clinic or doctor in the model object, so update
+	 * the aggregate counts. Takes keys, so that the old clinic and doctor
+	 * needn't be loaded.
+	 *
+	 * @param oldClinicID or null
+	 * @param oldDoctorID or null
+	 * @param clinicID or null
+	 * @param doctorID or null
+	 */
+	public void moved(Integer oldClinicID, Integer oldDoctorID, Integer clinicID, Integer doctorID) {
+		AggregateCounts counts = dbm.getAggregateCounts();
+		counts.patientRemoved(oldClinicID, oldDoctorID);
+		counts.patientAdded(clinicID, doctorID);
+	}
+
+	private static Integer clinicID(Clinic clinic) {
+		return clinic == null ? null : clinic.getID();
+	}
+
+	private static Integer doctorID(Doctor doctor) {
+		return doctor == null ? null : doctor.getMLN();
+	}
+
 	/**
 	 * Patient Name was changed in the model object, so propagate the change to the
 	 * database.
@@ -181,15 +812,24 @@ public class PatientDAO {
 	 */
 
 	public void changeName(int ssn, String pname) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("PATIENT", "ssn", ssn, "pname", pname))
+				return;
+
 			String cmd = "update PATIENT set pname = ? where ssn = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setString(1, pname);
 			pstmt.setInt(2, ssn);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing patient name", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.changeName", start);
 		}
 	}
 
@@ -200,15 +840,24 @@ public class PatientDAO {
 	* @param clinic
 	*/
 	public void changeClinic(int ssn, Clinic clinic) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("PATIENT", "ssn", ssn, "pCID", clinic.getID()))
+				return;
+
 			String cmd = "update PATIENT set pCID = ? where ssn = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setInt(1, clinic.getID());
 			pstmt.setInt(2, ssn);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing patient's clinic", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.changeClinic", start);
 		}
 	}
 
@@ -219,15 +868,24 @@ public class PatientDAO {
 	 * @param doctor
 	 */
 	public void changeDoctor(int ssn, Doctor doctor) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("PATIENT", "ssn", ssn, "pDID", doctor.getMLN()))
+				return;
+
 			String cmd = "update PATIENT set pDID = ? where ssn = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setInt(1, doctor.getMLN());
 			pstmt.setInt(2, ssn);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing patient's doctor", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.changeDoctor", start);
 		}
 	}
 
@@ -238,15 +896,24 @@ public class PatientDAO {
 	* @param email
 	*/
 	public void changeEmail(int ssn, String email) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("PATIENT", "ssn", ssn, "email", email))
+				return;
+
 			String cmd = "update PATIENT set email = ? where ssn = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setString(1, email);
 			pstmt.setInt(2, ssn);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing patient's email", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.changeEmail", start);
 		}
 	}
 
@@ -257,15 +924,24 @@ public class PatientDAO {
 	 * @param phone
 	 */
 	public void changePhoneNum(int ssn, String phone) {
+		long start = Metrics.begin();
 		try {
+			if (dbm.deferUpdate("PATIENT", "ssn", ssn, "phone", phone))
+				return;
+
 			String cmd = "update PATIENT set phone = ? where ssn = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
+			PreparedStatement pstmt = dbm.prepare(cmd);
 			pstmt.setString(1, phone);
 			pstmt.setInt(2, ssn);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing patient's phone number", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.changePhoneNum", start);
 		}
 	}
 
@@ -276,15 +952,25 @@ public class PatientDAO {
 	 * @param bDate
 	 */
 	public void changeBirthDate(int ssn, String bDate) {
+		long start = Metrics.begin();
 		try {
+			Date date = Date.valueOf(bDate);
+			if (dbm.deferUpdate("PATIENT", "ssn", ssn, "birthDate", date))
+				return;
+
 			String cmd = "update PATIENT set birthDate = ? where ssn = ?";
-			PreparedStatement pstmt = conn.prepareStatement(cmd);
-			pstmt.setString(1, bDate);
+			PreparedStatement pstmt = dbm.prepare(cmd);
+			pstmt.setDate(1, date);
 			pstmt.setInt(2, ssn);
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			dbm.cleanup();
 			throw new RuntimeException("error changing patient's birth date", e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("PatientDAO.changeBirthDate", start);
 		}
 	}
 
@@ -297,5 +983,6 @@ public class PatientDAO {
 		Statement stmt = conn.createStatement();
 		String s = "delete from Patient";
 		stmt.executeUpdate(s);
+		stmt.close();
 	}
 }
@@ -0,0 +1,189 @@
+package dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Builds the per-clinic report -- doctor and patient counts and doctors by
+ * specialty for every clinic, plus totals -- on a ForkJoinPool. The list of
+ * clinics is split in halves down to single clinics; each clinic is read on
+ * a session borrowed from the connection pool, and the halves' summaries
+ * are merged on the way back up.
+ *
+ *   ReportEngine engine = new ReportEngine(pool);
+ *   engine.setParallelism(8);
+ *   engine.addListener(summary -> System.out.println(summary));
+ *   ClinicReport report = engine.run();
+ *
+ * A worker holds a session only while it reads one clinic, so parallelism
+ * is capped at the pool size; more workers would only wait for connections.
+ *
+ * @author Eli Anderson
+ */
+public class ReportEngine {
+	// a clinic to report on
+	private static class ClinicRow {
+		final int cid;
+		final String name;
+
+		ClinicRow(int cid, String name) {
+			this.cid = cid;
+			this.name = name;
+		}
+	}
+
+	// the summaries of a range of clinics, and their merged counts
+	private static class Partial {
+		final List<ClinicReport.ClinicSummary> clinics;
+		final ClinicReport.ClinicSummary total;
+
+		Partial(List<ClinicReport.ClinicSummary> clinics, ClinicReport.ClinicSummary total) {
+			this.clinics = clinics;
+			this.total = total;
+		}
+	}
+
+	private final ConnectionPool pool;
+	private int parallelism;
+	private final CopyOnWriteArrayList<Consumer<ClinicReport.ClinicSummary>> listeners =
+			new CopyOnWriteArrayList<Consumer<ClinicReport.ClinicSummary>>();
+
+	public ReportEngine(ConnectionPool pool) {
+		this.pool = pool;
+		this.parallelism = pool.getSize();
+	}
+
+	/**
+	 * @param parallelism clinics read at once; at most the pool size (the default)
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		this.parallelism = Math.min(parallelism, pool.getSize());
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Be told about each clinic as soon as its summary is ready, e.g. to
+	 * print per-clinic timings while the report runs. Called on the worker
+	 * threads, in no particular order.
+	 *
+	 * @param listener
+	 */
+	public void addListener(Consumer<ClinicReport.ClinicSummary> listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Consumer<ClinicReport.ClinicSummary> listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Report on every clinic; returns when all are done
+	 *
+	 * @return the report
+	 */
+	public ClinicReport run() {
+		long started = System.nanoTime();
+		List<ClinicRow> clinics = listClinics();
+
+		ForkJoinPool forkJoin = new ForkJoinPool(parallelism);
+		try {
+			Partial all = clinics.isEmpty() ? null : forkJoin.invoke(new ClinicTask(clinics, 0, clinics.size()));
+			long millis = (System.nanoTime() - started) / 1000000;
+			if (all == null)
+				return new ClinicReport(new ArrayList<ClinicReport.ClinicSummary>(),
+						new ClinicReport.ClinicSummary(null, null, 0, 0, new TreeMap<String, Integer>(), 0, null),
+						parallelism, millis);
+			return new ClinicReport(all.clinics, all.total, parallelism, millis);
+		} finally {
+			forkJoin.shutdownNow();
+		}
+	}
+
+	// the clinics, in one query rather than a name lookup per clinic
+	private List<ClinicRow> listClinics() {
+		List<ClinicRow> clinics = new ArrayList<ClinicRow>();
+		DatabaseManager dbm = pool.openSession();
+		try (ResultSet rs = dbm.prepare("select clinicID, clinicName from CLINIC order by clinicID").executeQuery()) {
+			while (rs.next())
+				clinics.add(new ClinicRow(rs.getInt("clinicID"), rs.getString("clinicName")));
+		} catch (SQLException e) {
+			throw new RuntimeException("error listing clinics", e);
+		} finally {
+			dbm.close();
+		}
+		return clinics;
+	}
+
+	// reports on clinics [from, to), splitting the range until it is one clinic
+	private class ClinicTask extends RecursiveTask<Partial> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<ClinicRow> clinics;
+		private final int from;
+		private final int to;
+
+		ClinicTask(List<ClinicRow> clinics, int from, int to) {
+			this.clinics = clinics;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected Partial compute() {
+			if (to - from == 1) {
+				ClinicReport.ClinicSummary summary = summarize(clinics.get(from));
+				List<ClinicReport.ClinicSummary> one = new ArrayList<ClinicReport.ClinicSummary>();
+				one.add(summary);
+				return new Partial(one, summary);
+			}
+
+			int middle = (from + to) >>> 1;
+			ClinicTask left = new ClinicTask(clinics, from, middle);
+			left.fork();
+			Partial right = new ClinicTask(clinics, middle, to).compute();
+			Partial first = left.join();
+
+			List<ClinicReport.ClinicSummary> both = new ArrayList<ClinicReport.ClinicSummary>(to - from);
+			both.addAll(first.clinics);
+			both.addAll(right.clinics);
+			return new Partial(both, first.total.merge(right.total));
+		}
+	}
+
+	private ClinicReport.ClinicSummary summarize(ClinicRow clinic) {
+		DatabaseManager dbm = pool.openSession();
+		long start = Metrics.begin();
+		try {
+			int patients = dbm.countPatients(clinic.cid);
+			Map<String, Integer> specialties = new TreeMap<String, Integer>(dbm.countDoctorsBySpecialty(clinic.cid));
+			int doctors = 0;
+			for (int n : specialties.values())
+				doctors += n;
+
+			long millis = (System.nanoTime() - start) / 1000000;
+			ClinicReport.ClinicSummary summary = new ClinicReport.ClinicSummary(clinic.cid, clinic.name, doctors,
+					patients, specialties, millis, Thread.currentThread().getName());
+			for (Consumer<ClinicReport.ClinicSummary> listener : listeners)
+				listener.accept(summary);
+			return summary;
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			dbm.getMetrics().end("ReportEngine.summarize", start);
+			dbm.close();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Forward-only, read-only cursor that turns the rows of a query into model
+ * objects one at a time, so large results never have to be held in memory.
+ * The cursor has its own statement (not one from the StatementCache), since
+ * it stays open while the caller runs other queries. It closes itself once
+ * the last row has been read, or when the stream is closed.
+ *
+ * @author Eli Anderson
+ */
+class RowCursor<T> implements Iterator<T>, AutoCloseable {
+	/**
+	 * Builds a model object from the current row.
+	 */
+	interface RowMapper<T> {
+		T map(ResultSet rs) throws SQLException;
+	}
+
+	private final DatabaseManager dbm;
+	private final RowMapper<T> mapper;
+	private PreparedStatement pstmt;
+	private ResultSet rs;
+	private boolean hasRow;
+
+	/**
+	 * Run the query and position the cursor on the first row.
+	 *
+	 * @param dbm
+	 * @param conn
+	 * @param sql
+	 * @param fetchSize rows the driver fetches per trip, or 0 for its default
+	 * @param mapper
+	 * @param params int parameters for the query, in order
+	 * @throws SQLException
+	 */
+	RowCursor(DatabaseManager dbm, Connection conn, String sql, int fetchSize, RowMapper<T> mapper, int... params)
+			throws SQLException {
+		this.dbm = dbm;
+		this.mapper = mapper;
+		pstmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		Metrics.statement();
+		try {
+			pstmt.setFetchSize(fetchSize);
+			for (int i = 0; i < params.length; i++)
+				pstmt.setInt(i + 1, params[i]);
+			rs = pstmt.executeQuery();
+			advance();
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wrap the cursor in a sequential Stream; closing the stream closes the cursor.
+	 */
+	Stream<T> stream() {
+		Spliterator<T> split = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(split, false).onClose(this::close);
+	}
+
+	public boolean hasNext() {
+		return hasRow;
+	}
+
+	public T next() {
+		if (!hasRow)
+			throw new NoSuchElementException();
+		try {
+			T row = mapper.map(rs);
+			advance();
+			return row;
+		} catch (SQLException e) {
+			close();
+			dbm.cleanup();
+			throw new RuntimeException("error reading next row", e);
+		}
+	}
+
+	private void advance() throws SQLException {
+		hasRow = rs.next();
+		if (!hasRow)
+			close();
+	}
+
+	public void close() {
+		hasRow = false;
+		try {
+			if (rs != null)
+				rs.close();
+			if (pstmt != null)
+				pstmt.close();
+		} catch (SQLException e) {
+			System.out.println("warning: cannot close cursor");
+		}
+		rs = null;
+		pstmt = null;
+	}
+}
@@ -0,0 +1,110 @@
+package dao;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Brings the schema of an existing HealthcareDatabase up to date.
+ * The version number is kept in the SCHEMA_VERSION table; each step below
+ * upgrades the schema by one version and is run at most once per database.
+ *
+ * @author Eli Anderson
+ */
+class SchemaMigrator {
+	/**
+	 * Version produced by running every step; bump when adding one.
+	 */
+	static final int CURRENT_VERSION = 4;
+
+	/**
+	 * Apply all steps newer than the database's version, committing after each.
+	 *
+	 * @param conn
+	 * @throws SQLException
+	 */
+	static void migrate(Connection conn) throws SQLException {
+		int version = getVersion(conn);
+		while (version < CURRENT_VERSION) {
+			version++;
+			apply(conn, version);
+			setVersion(conn, version);
+			conn.commit();
+		}
+	}
+
+	/**
+	 * Upgrade the schema from version - 1 to version, sending the step's
+	 * DDL as one batch.
+	 *
+	 * @param conn
+	 * @param version
+	 * @throws SQLException
+	 */
+	private static void apply(Connection conn, int version) throws SQLException {
+		Statement stmt = conn.createStatement();
+		switch (version) {
+		case 1:
+			// indexes for name lookups and child-collection queries
+			ClinicDAO.addIndexes(stmt);
+			DoctorDAO.addIndexes(stmt);
+			PatientDAO.addIndexes(stmt);
+			break;
+		case 2:
+			// change data capture
+			ChangeLog.create(stmt);
+			break;
+		case 3:
+			// birthDate as a DATE, for date-range queries in the database
+			PatientDAO.convertBirthDate(conn, stmt);
+			break;
+		case 4:
+			// specialties as codes into a lookup table, indexed
+			SpecialtyDictionary.create(stmt);
+			DoctorDAO.encodeSpecialty(stmt);
+			break;
+		default:
+			stmt.close();
+			throw new IllegalArgumentException("no schema migration to version " + version);
+		}
+		stmt.executeBatch();
+		stmt.close();
+	}
+
+	/**
+	 * Read the schema version, creating the version table (at version 0)
+	 * for databases made before it existed.
+	 *
+	 * @param conn
+	 * @return the version
+	 * @throws SQLException
+	 */
+	static int getVersion(Connection conn) throws SQLException {
+		DatabaseMetaData meta = conn.getMetaData();
+		ResultSet tables = meta.getTables(null, null, "SCHEMA_VERSION", null);
+		boolean exists = tables.next();
+		tables.close();
+
+		Statement stmt = conn.createStatement();
+		if (!exists) {
+			stmt.executeUpdate("create table SCHEMA_VERSION(version int not null)");
+			stmt.executeUpdate("insert into SCHEMA_VERSION(version) values(0)");
+			conn.commit();
+		}
+
+		ResultSet rs = stmt.executeQuery("select version from SCHEMA_VERSION");
+		rs.next();
+		int version = rs.getInt("version");
+		rs.close();
+		stmt.close();
+		return version;
+	}
+
+	private static void setVersion(Connection conn, int version) throws SQLException {
+		Statement stmt = conn.createStatement();
+		stmt.executeUpdate("update SCHEMA_VERSION set version = " + version);
+		stmt.close();
+	}
+}
@@ -0,0 +1,162 @@
+package dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The SPECIALTY lookup table, cached in memory. DOCTOR stores a specialty
+ * as an int code; the dictionary turns codes into names and back, and
+ * hands out one canonical String per specialty, so loaded Doctor objects
+ * share their specialty strings instead of each holding its own copy.
+ *
+ * A specialty not seen before is added to SPECIALTY on a connection of its
+ * own and committed at once, not in the caller's transaction: a background
+ * writer's foreign key check would otherwise wait for the caller's commit.
+ * An unknown code (added by another session) is looked up again.
+ *
+ * @author Eli Anderson
+ */
+class SpecialtyDictionary {
+	private final DatabaseManager dbm;
+	private final Map<Integer, String> names = new HashMap<Integer, String>();
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+	SpecialtyDictionary(DatabaseManager dbm) {
+		this.dbm = dbm;
+	}
+
+	/**
+	 * Create the SPECIALTY table
+	 *
+	 * @param stmt the batch the DDL is added to
+	 * @throws SQLException
+	 */
+	static void create(Statement stmt) throws SQLException {
+		stmt.addBatch("create table SPECIALTY(\n"
+				+ "specialtyID int generated always as identity,\n"
+				+ "name varchar(30) not null unique,\n"
+				+ "primary key(specialtyID)\n"
+				+ ")");
+	}
+
+	/**
+	 * @param code
+	 * @return the canonical name for the code
+	 * @throws SQLException
+	 */
+	synchronized String name(int code) throws SQLException {
+		String name = names.get(code);
+		if (name == null) {
+			load();
+			name = names.get(code);
+			if (name == null)
+				throw new IllegalStateException("unknown specialty code " + code);
+		}
+		return name;
+	}
+
+	/**
+	 * Name a code without touching this dictionary's connection: a code not
+	 * known here is read through the other dictionary (another session's,
+	 * used by the calling thread alone) and remembered.
+	 *
+	 * @param code
+	 * @param reader
+	 * @return the canonical name for the code
+	 * @throws SQLException
+	 */
+	synchronized String name(int code, SpecialtyDictionary reader) throws SQLException {
+		String name = names.get(code);
+		if (name == null) {
+			name = reader.name(code);
+			names.put(code, name);
+			codes.put(name, code);
+		}
+		return name;
+	}
+
+	/**
+	 * @param name
+	 * @return the code of the specialty, or null if there is no such specialty
+	 * @throws SQLException
+	 */
+	synchronized Integer find(String name) throws SQLException {
+		Integer code = codes.get(name);
+		if (code == null) {
+			load();
+			code = codes.get(name);
+		}
+		return code;
+	}
+
+	/**
+	 * @param name
+	 * @return the code of the specialty, adding it if it is new
+	 * @throws SQLException
+	 */
+	synchronized int code(String name) throws SQLException {
+		Integer code = codes.get(name);
+		if (code != null)
+			return code;
+
+		load();
+		code = codes.get(name);
+		if (code != null)
+			return code;
+
+		try (Connection conn = dbm.connectAutoCommit();
+				PreparedStatement pstmt = conn.prepareStatement("insert into SPECIALTY(name) values(?)")) {
+			pstmt.setString(1, name);
+			Metrics.statement();
+			pstmt.executeUpdate();
+		} catch (SQLException e) {
+			// another session added it in the meantime
+			if (!BatchInserter.DUPLICATE_KEY.equals(e.getSQLState()))
+				throw e;
+		}
+		load();
+		return codes.get(name);
+	}
+
+	/**
+	 * @param name
+	 * @return the dictionary's instance of name, or name itself if it isn't a known specialty
+	 */
+	synchronized String canonical(String name) {
+		Integer code = codes.get(name);
+		return code == null ? name : names.get(code);
+	}
+
+	/**
+	 * Forget the cached entries, so that they are read again
+	 */
+	synchronized void clear() {
+		names.clear();
+		codes.clear();
+	}
+
+	/**
+	 * Read the whole table; it only has a few dozen rows
+	 *
+	 * @throws SQLException
+	 */
+	synchronized void load() throws SQLException {
+		PreparedStatement pstmt = dbm.prepare("select specialtyID, name from SPECIALTY");
+		ResultSet rs = pstmt.executeQuery();
+		while (rs.next()) {
+			int code = rs.getInt(1);
+			String name = names.get(code);
+			if (name == null) {
+				name = rs.getString(2);
+				names.put(code, name);
+				codes.put(name, code);
+			}
+		}
+		rs.close();
+	}
+}
@@ -0,0 +1,296 @@
+package dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fast startup: boots Derby and opens the DatabaseManager on a background
+ * thread, so the caller can get on with its own initialization, and then
+ * preloads a hot set into the manager's identity maps -- all clinics, all
+ * doctors, and the patients most recently written according to the change
+ * log -- on several connections at once, so the first requests after a
+ * restart don't all miss.
+ *
+ *   Startup startup = new Startup(url);
+ *   startup.setRecentPatients(1000);
+ *   startup.start();
+ *   ... other initialization ...
+ *   DatabaseManager dbm = startup.ready().join();
+ *
+ * The manager may be used as soon as ready() completes; warm-up only adds
+ * objects to the identity maps, which are synchronized, and a lookup that
+ * comes first simply loads the row itself. Wait for warmed() before
+ * closing the manager. The hot set should fit the cache size, or it
+ * pushes itself out.
+ *
+ * @author Eli Anderson
+ */
+public class Startup {
+	private final String url;
+	private boolean preloadClinics = true;
+	private boolean preloadDoctors = true;
+	private int recentPatients = 0;
+	private int parallelism = 3;
+
+	private final CompletableFuture<DatabaseManager> ready = new CompletableFuture<DatabaseManager>();
+	private final CompletableFuture<DatabaseManager> warmed = new CompletableFuture<DatabaseManager>();
+	private volatile long started;
+	private volatile long timeToFirstQuery = -1;
+	private volatile long timeToWarm = -1;
+	private final AtomicInteger clinics = new AtomicInteger();
+	private final AtomicInteger doctors = new AtomicInteger();
+	private final AtomicInteger patients = new AtomicInteger();
+
+	public Startup() {
+		this(DatabaseManager.DEFAULT_URL);
+	}
+
+	public Startup(String url) {
+		this.url = url;
+	}
+
+	public void setPreloadClinics(boolean preloadClinics) {
+		this.preloadClinics = preloadClinics;
+	}
+
+	public void setPreloadDoctors(boolean preloadDoctors) {
+		this.preloadDoctors = preloadDoctors;
+	}
+
+	/**
+	 * @param recentPatients how many of the most recently inserted or
+	 * updated patients to preload (0, the default, for none)
+	 */
+	public void setRecentPatients(int recentPatients) {
+		this.recentPatients = recentPatients;
+	}
+
+	/**
+	 * @param parallelism connections the warm-up reads on at once
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Boot in the background; returns at once
+	 *
+	 * @return ready()
+	 */
+	public CompletableFuture<DatabaseManager> start() {
+		started = System.nanoTime();
+		Thread boot = new Thread(this::boot, "dao-startup");
+		boot.setDaemon(true);
+		boot.start();
+		return ready;
+	}
+
+	/**
+	 * @return completes with the manager once it can run queries
+	 */
+	public CompletableFuture<DatabaseManager> ready() {
+		return ready;
+	}
+
+	/**
+	 * @return completes with the manager once the hot set is loaded
+	 */
+	public CompletableFuture<DatabaseManager> warmed() {
+		return warmed;
+	}
+
+	/**
+	 * @return milliseconds from start() until the manager could run queries, or -1 before then
+	 */
+	public long getTimeToFirstQuery() {
+		return timeToFirstQuery;
+	}
+
+	/**
+	 * @return milliseconds from start() until the hot set was loaded, or -1 before then
+	 */
+	public long getTimeToWarm() {
+		return timeToWarm;
+	}
+
+	public int getClinicsLoaded() {
+		return clinics.get();
+	}
+
+	public int getDoctorsLoaded() {
+		return doctors.get();
+	}
+
+	public int getPatientsLoaded() {
+		return patients.get();
+	}
+
+	public String toString() {
+		return "first query after " + timeToFirstQuery + " ms, warm after " + timeToWarm + " ms ("
+				+ clinics + " clinics, " + doctors + " doctors, " + patients + " patients)";
+	}
+
+	private void boot() {
+		DatabaseManager dbm;
+		try {
+			dbm = new DatabaseManager(url);
+		} catch (RuntimeException e) {
+			ready.completeExceptionally(e);
+			warmed.completeExceptionally(e);
+			return;
+		}
+
+		// while no other thread has the manager: warm-up rows name their
+		// specialties from this, and must not read on the manager's connection
+		try {
+			dbm.getSpecialties().load();
+			dbm.commit();
+		} catch (SQLException e) {
+			dbm.close();
+			RuntimeException failure = new RuntimeException("error loading specialties", e);
+			ready.completeExceptionally(failure);
+			warmed.completeExceptionally(failure);
+			return;
+		}
+		timeToFirstQuery = millisSinceStart();
+		ready.complete(dbm);
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+			Thread t = new Thread(r, "dao-warmup");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+			if (preloadClinics)
+				tasks.add(CompletableFuture.runAsync(() -> warmClinics(dbm), executor));
+			if (preloadDoctors)
+				tasks.addAll(warmDoctors(dbm, executor));
+			if (recentPatients > 0)
+				tasks.addAll(warmPatients(dbm, executor));
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+			timeToWarm = millisSinceStart();
+			warmed.complete(dbm);
+		} catch (RuntimeException e) {
+			warmed.completeExceptionally(e);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private long millisSinceStart() {
+		return (System.nanoTime() - started) / 1000000;
+	}
+
+	//***************************************************************
+	// Warm-up tasks -- each reads on a session of its own and loads the
+	// rows into the identity maps of the started manager
+
+	private interface Reader {
+		void read(DatabaseManager session) throws SQLException;
+	}
+
+	private static void withSession(DatabaseManager dbm, String name, Reader reader) {
+		long start = Metrics.begin();
+		DatabaseManager session = null;
+		try {
+			session = dbm.openSecondary();
+			reader.read(session);
+			session.commit();
+		} catch (SQLException e) {
+			session.cleanup();
+			throw new RuntimeException("error preloading " + name, e);
+		} catch (RuntimeException e) {
+			Metrics.error();
+			throw e;
+		} finally {
+			if (session != null)
+				session.close();
+			dbm.getMetrics().end("Startup." + name, start);
+		}
+	}
+
+	private void warmClinics(DatabaseManager dbm) {
+		withSession(dbm, "clinics", session -> {
+			ResultSet rs = session.prepare("select clinicID, clinicName, address, phoneNumber from CLINIC")
+					.executeQuery();
+			while (rs.next()) {
+				dbm.getClinicDAO().loadRow(rs);
+				clinics.incrementAndGet();
+			}
+			rs.close();
+		});
+	}
+
+	// one task per key range of DOCTOR
+	private List<CompletableFuture<Void>> warmDoctors(DatabaseManager dbm, ExecutorService executor) {
+		int[] bounds = new int[2];
+		withSession(dbm, "doctorRange", session -> {
+			ResultSet rs = session.prepare("select min(mln), max(mln) from DOCTOR").executeQuery();
+			rs.next();
+			bounds[0] = rs.getInt(1);
+			bounds[1] = rs.getInt(2);
+			rs.close();
+		});
+
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+		long width = ((long) bounds[1] - bounds[0]) / parallelism + 1;
+		for (long low = bounds[0]; low <= bounds[1]; low += width) {
+			int from = (int) low;
+			int to = (int) Math.min(low + width - 1, bounds[1]);
+			tasks.add(CompletableFuture.runAsync(() -> withSession(dbm, "doctors", session -> {
+				PreparedStatement pstmt = session.prepare(DoctorDAO.JOINED_QRY + "where d.mln between ? and ?");
+				pstmt.setInt(1, from);
+				pstmt.setInt(2, to);
+				ResultSet rs = pstmt.executeQuery();
+				while (rs.next()) {
+					dbm.getDoctorDAO().loadRow(rs, session);
+					doctors.incrementAndGet();
+				}
+				rs.close();
+			}), executor));
+		}
+		return tasks;
+	}
+
+	// the most recently written patients, split evenly over the tasks
+	private List<CompletableFuture<Void>> warmPatients(DatabaseManager dbm, ExecutorService executor) {
+		List<Integer> keys = new ArrayList<Integer>();
+		withSession(dbm, "recentPatients", session -> {
+			PreparedStatement pstmt = session.prepare("select keyValue from CHANGE_LOG "
+					+ "where tableName = 'PATIENT' and keyValue is not null "
+					+ "group by keyValue order by max(seq) desc fetch first ? rows only");
+			pstmt.setInt(1, recentPatients);
+			ResultSet rs = pstmt.executeQuery();
+			while (rs.next())
+				keys.add(rs.getInt(1));
+			rs.close();
+		});
+
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+		int chunk = keys.size() / parallelism + 1;
+		for (int from = 0; from < keys.size(); from += chunk) {
+			List<Integer> part = keys.subList(from, Math.min(from + chunk, keys.size()));
+			tasks.add(CompletableFuture.runAsync(() -> withSession(dbm, "patients", session -> {
+				PreparedStatement pstmt = session.prepare(PatientDAO.JOINED_QRY + "where p.ssn = ?");
+				for (int ssn : part) {
+					pstmt.setInt(1, ssn);
+					ResultSet rs = pstmt.executeQuery();
+					if (rs.next()) {
+						dbm.getPatientDAO().loadRow(rs, session);
+						patients.incrementAndGet();
+					}
+					rs.close();
+				}
+			}), executor));
+		}
+		return tasks;
+	}
+}
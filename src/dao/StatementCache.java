@@ -0,0 +1,145 @@
+package dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of prepared statements for one connection, keyed by SQL text.
+ * Statements stay open for reuse until evicted (least recently used first)
+ * or until the cache is closed. A statement evicted while its ResultSet is
+ * still open (say, an outer loop over rows whose loading prepares other
+ * statements) is taken out of the cache but only closed once that
+ * ResultSet has been closed.
+ *
+ * Callers must close the ResultSets they get from a cached statement, and
+ * must not re-execute the same SQL while one of its ResultSets is still open.
+ *
+ * @author Eli Anderson
+ */
+public class StatementCache {
+	private final Connection conn;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	// evicted while still being read; closed once their ResultSet is
+	private final List<PreparedStatement> retired = new ArrayList<PreparedStatement>();
+	private int capacity;
+	private long prepares;
+	private long hits;
+
+	public static final int DEFAULT_CAPACITY = 100;
+
+	public StatementCache(Connection conn, int capacity) {
+		this.conn = conn;
+		this.capacity = capacity;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	}
+
+	Connection getConnection() {
+		return conn;
+	}
+
+	/**
+	 * Return an open PreparedStatement for the given SQL, preparing it on first use.
+	 *
+	 * @param sql
+	 * @return the PreparedStatement
+	 * @throws SQLException
+	 */
+	synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement pstmt = statements.get(sql);
+		if (pstmt != null) {
+			hits++;
+			return pstmt;
+		}
+
+		pstmt = conn.prepareStatement(sql);
+		prepares++;
+		statements.put(sql, pstmt);
+		trim();
+		return pstmt;
+	}
+
+	/**
+	 * Close every cached statement
+	 */
+	synchronized void close() {
+		for (PreparedStatement pstmt : statements.values())
+			closeQuietly(pstmt);
+		statements.clear();
+		for (PreparedStatement pstmt : retired)
+			closeQuietly(pstmt);
+		retired.clear();
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		trim();
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getPrepares() {
+		return prepares;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized int getOpenStatements() {
+		return statements.size() + retired.size();
+	}
+
+	public synchronized String toString() {
+		return "open=" + statements.size() + "/" + capacity + " prepares=" + prepares + " hits=" + hits
+				+ (retired.isEmpty() ? "" : " retired=" + retired.size());
+	}
+
+	// close least recently used statements until we are within capacity,
+	// holding back those whose ResultSet a caller is still reading
+	private void trim() {
+		Iterator<PreparedStatement> done = retired.iterator();
+		while (done.hasNext()) {
+			PreparedStatement pstmt = done.next();
+			if (!inUse(pstmt)) {
+				closeQuietly(pstmt);
+				done.remove();
+			}
+		}
+
+		Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+		while (statements.size() > capacity && it.hasNext()) {
+			PreparedStatement pstmt = it.next().getValue();
+			it.remove();
+			if (inUse(pstmt))
+				retired.add(pstmt);
+			else
+				closeQuietly(pstmt);
+		}
+	}
+
+	private static boolean inUse(PreparedStatement pstmt) {
+		try {
+			ResultSet rs = pstmt.getResultSet();
+			return rs != null && !rs.isClosed();
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement pstmt) {
+		try {
+			pstmt.close();
+		} catch (SQLException e) {
+			System.out.println("warning: cannot close statement");
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package dao;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams whole tables, or per-clinic partitions of them, straight from a
+ * forward-only JDBC cursor to a file, without building model objects.
+ *
+ * Two formats are supported:
+ *   CSV    -- a header line with the column names, then one line per row
+ *   BINARY -- "HCDB", a version byte, the column count (short), each column's
+ *             name (short length + UTF-8) and type byte ('I' int, 'i' nullable
+ *             int, 'S' string); then per row an int byte length followed by the
+ *             fields: ints as 4 bytes, nullable ints as a null flag byte (1 for
+ *             null) + 4 bytes if not null, strings as a short length (-1 for
+ *             null) + UTF-8 bytes
+ * Either may be gzip-compressed.
+ *
+ * @author Eli Anderson
+ */
+public class TableExporter {
+	public enum Format { CSV, BINARY }
+
+	/**
+	 * The exportable tables, with their key and (if any) clinic column, and
+	 * the query for their rows; doctors are exported with the specialty
+	 * name rather than its code.
+	 */
+	public enum Table {
+		CLINIC("clinicID", "clinicID", "select * from CLINIC"),
+		DOCTOR("mln", "dCID", "select d.mln, d.dname, s.name as specialty, d.phone, d.email, d.dCID "
+				+ "from DOCTOR d join SPECIALTY s on d.specialtyID = s.specialtyID"),
+		PATIENT("ssn", "pCID", "select * from PATIENT");
+
+		final String keyColumn;
+		final String clinicColumn;
+		final String select;
+
+		Table(String keyColumn, String clinicColumn, String select) {
+			this.keyColumn = keyColumn;
+			this.clinicColumn = clinicColumn;
+			this.select = select;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final Format format;
+	private final boolean gzip;
+	private int fetchSize = DatabaseManager.DEFAULT_FETCH_SIZE;
+
+	public TableExporter(Format format, boolean gzip) {
+		this.format = format;
+		this.gzip = gzip;
+	}
+
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * File name for a table (or a clinic's partition of it) in this exporter's format
+	 *
+	 * @param table
+	 * @param cid the clinic, or null for the whole table
+	 * @return the name
+	 */
+	public String fileName(Table table, Integer cid) {
+		return fileName(table.name().toLowerCase() + (cid == null ? "" : "-" + cid));
+	}
+
+	private String fileName(String name) {
+		name += format == Format.CSV ? ".csv" : ".bin";
+		return gzip ? name + ".gz" : name;
+	}
+
+	/**
+	 * Export all rows of a table, in key order.
+	 *
+	 * @param dbm
+	 * @param table
+	 * @param file
+	 * @return the number of rows written
+	 * @throws IOException
+	 */
+	public long exportTable(DatabaseManager dbm, Table table, Path file) throws IOException {
+		String qry = table.select + " order by " + table.keyColumn;
+		return export(dbm, qry, null, file);
+	}
+
+	/**
+	 * Export the rows of a table that belong to one clinic, in key order.
+	 *
+	 * @param dbm
+	 * @param table
+	 * @param cid
+	 * @param file
+	 * @return the number of rows written
+	 * @throws IOException
+	 */
+	public long exportClinicPartition(DatabaseManager dbm, Table table, int cid, Path file) throws IOException {
+		String qry = table.select + " where " + table.clinicColumn + " = ? order by " + table.keyColumn;
+		return export(dbm, qry, cid, file);
+	}
+
+	/**
+	 * Export the rows of a table that belong to no clinic, in key order.
+	 *
+	 * @param dbm
+	 * @param table
+	 * @param file
+	 * @return the number of rows written
+	 * @throws IOException
+	 */
+	public long exportUnassigned(DatabaseManager dbm, Table table, Path file) throws IOException {
+		String qry = table.select + " where " + table.clinicColumn + " is null order by " + table.keyColumn;
+		return export(dbm, qry, null, file);
+	}
+
+	/**
+	 * Export a table as one file per clinic into dir, running up to
+	 * parallelism partitions at once, each on its own pooled session.
+	 * Patients without a clinic go to their own "unassigned" file.
+	 *
+	 * @param pool
+	 * @param table
+	 * @param dir
+	 * @param parallelism
+	 * @return the number of rows written per clinicID (null for unassigned)
+	 * @throws IOException
+	 */
+	public Map<Integer, Long> exportByClinic(ConnectionPool pool, Table table, Path dir, int parallelism)
+			throws IOException {
+		List<Integer> cids = new ArrayList<Integer>();
+		DatabaseManager dbm = pool.openSession();
+		try (ResultSet rs = dbm.prepare("select clinicID from CLINIC order by clinicID").executeQuery()) {
+			while (rs.next())
+				cids.add(rs.getInt("clinicID"));
+		} catch (SQLException e) {
+			throw new RuntimeException("error listing clinics", e);
+		} finally {
+			dbm.close();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			Map<Integer, Future<Long>> futures = new LinkedHashMap<Integer, Future<Long>>();
+			for (int cid : cids) {
+				Path file = dir.resolve(fileName(table, cid));
+				futures.put(cid, executor.submit(() -> {
+					DatabaseManager session = pool.openSession();
+					try {
+						return exportClinicPartition(session, table, cid, file);
+					} finally {
+						session.close();
+					}
+				}));
+			}
+
+			if (table == Table.PATIENT) {
+				Path file = dir.resolve(fileName("patient-unassigned"));
+				futures.put(null, executor.submit(() -> {
+					DatabaseManager session = pool.openSession();
+					try {
+						return exportUnassigned(session, table, file);
+					} finally {
+						session.close();
+					}
+				}));
+			}
+
+			Map<Integer, Long> counts = new LinkedHashMap<Integer, Long>();
+			for (Map.Entry<Integer, Future<Long>> f : futures.entrySet())
+				counts.put(f.getKey(), f.getValue().get());
+			return counts;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted exporting " + table, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException("error exporting " + table, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private long export(DatabaseManager dbm, String qry, Integer cid, Path file) throws IOException {
+		Connection conn = dbm.getConnection();
+		try (PreparedStatement pstmt = conn.prepareStatement(qry, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY)) {
+			pstmt.setFetchSize(fetchSize);
+			if (cid != null)
+				pstmt.setInt(1, cid);
+			try (ResultSet rs = pstmt.executeQuery(); RowWriter out = open(file)) {
+				ResultSetMetaData meta = rs.getMetaData();
+				int n = meta.getColumnCount();
+				char[] types = new char[n];
+				String[] names = new String[n];
+				for (int i = 0; i < n; i++) {
+					if (meta.getColumnType(i + 1) != Types.INTEGER)
+						types[i] = 'S';
+					else if (meta.isNullable(i + 1) == ResultSetMetaData.columnNoNulls)
+						types[i] = 'I';
+					else
+						types[i] = 'i';
+					names[i] = meta.getColumnName(i + 1);
+				}
+				out.header(names, types);
+
+				long rows = 0;
+				while (rs.next()) {
+					out.row(rs, types);
+					rows++;
+				}
+				return rows;
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("error exporting to " + file, e);
+		}
+	}
+
+	private RowWriter open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		WritableByteChannel target = channel;
+		if (gzip) {
+			OutputStream zip = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+			target = Channels.newChannel(zip);
+		}
+		return format == Format.CSV ? new CsvWriter(target) : new BinaryWriter(target);
+	}
+
+	//***************************************************************
+	// Row writers -- fill a direct buffer and hand it to the channel when full
+
+	private static abstract class RowWriter implements AutoCloseable {
+		private final WritableByteChannel channel;
+		protected final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		RowWriter(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		abstract void header(String[] names, char[] types) throws IOException;
+
+		abstract void row(ResultSet rs, char[] types) throws SQLException, IOException;
+
+		// make sure there are at least n free bytes in the buffer
+		protected void reserve(int n) throws IOException {
+			if (buffer.remaining() < n)
+				drain();
+		}
+
+		protected void put(byte[] bytes) throws IOException {
+			if (bytes.length > buffer.capacity()) {
+				drain();
+				channel.write(ByteBuffer.wrap(bytes));
+				return;
+			}
+			reserve(bytes.length);
+			buffer.put(bytes);
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		public void close() throws IOException {
+			drain();
+			channel.close();
+		}
+	}
+
+	private static class CsvWriter extends RowWriter {
+		private final StringBuilder line = new StringBuilder();
+
+		CsvWriter(WritableByteChannel channel) {
+			super(channel);
+		}
+
+		void header(String[] names, char[] types) throws IOException {
+			line.setLength(0);
+			for (int i = 0; i < names.length; i++) {
+				if (i > 0)
+					line.append(',');
+				line.append(names[i]);
+			}
+			line.append('\n');
+			put(line.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		void row(ResultSet rs, char[] types) throws SQLException, IOException {
+			line.setLength(0);
+			for (int i = 0; i < types.length; i++) {
+				if (i > 0)
+					line.append(',');
+				if (types[i] != 'S') {
+					int value = rs.getInt(i + 1);
+					if (!rs.wasNull())
+						line.append(value);
+				} else {
+					String value = rs.getString(i + 1);
+					if (value != null)
+						appendQuoted(value);
+				}
+			}
+			line.append('\n');
+			put(line.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		private void appendQuoted(String value) {
+			if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+				line.append(value);
+				return;
+			}
+			line.append('"').append(value.replace("\"", "\"\"")).append('"');
+		}
+	}
+
+	private static class BinaryWriter extends RowWriter {
+		private static final byte VERSION = 1;
+		private final ByteBuffer row = ByteBuffer.allocate(BUFFER_SIZE);
+
+		BinaryWriter(WritableByteChannel channel) {
+			super(channel);
+		}
+
+		void header(String[] names, char[] types) throws IOException {
+			row.clear();
+			row.put("HCDB".getBytes(StandardCharsets.US_ASCII));
+			row.put(VERSION);
+			row.putShort((short) names.length);
+			for (int i = 0; i < names.length; i++) {
+				putString(names[i]);
+				row.put((byte) types[i]);
+			}
+			flushRow(false);
+		}
+
+		void row(ResultSet rs, char[] types) throws SQLException, IOException {
+			row.clear();
+			for (int i = 0; i < types.length; i++) {
+				if (types[i] == 'I') {
+					row.putInt(rs.getInt(i + 1));
+				} else if (types[i] == 'i') {
+					int value = rs.getInt(i + 1);
+					if (rs.wasNull()) {
+						row.put((byte) 1);
+					} else {
+						row.put((byte) 0);
+						row.putInt(value);
+					}
+				} else {
+					putString(rs.getString(i + 1));
+				}
+			}
+			flushRow(true);
+		}
+
+		private void putString(String s) {
+			if (s == null) {
+				row.putShort((short) -1);
+				return;
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			row.putShort((short) bytes.length);
+			row.put(bytes);
+		}
+
+		// copy the assembled row (optionally prefixed by its length) into the output buffer
+		private void flushRow(boolean lengthPrefix) throws IOException {
+			row.flip();
+			reserve(row.remaining() + 4);
+			if (lengthPrefix)
+				buffer.putInt(row.remaining());
+			buffer.put(row);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package dao;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the column changes made through the model setters while
+ * write-through is off, and writes them out as one UPDATE per changed row.
+ * Rows that changed the same set of columns share a statement and go to
+ * the database in a single batch.
+ *
+ * @author Eli Anderson
+ */
+class UnitOfWork {
+	// table -> key -> (column -> new value); later changes overwrite earlier ones
+	private final Map<String, Map<Integer, TreeMap<String, Object>>> dirty =
+			new LinkedHashMap<String, Map<Integer, TreeMap<String, Object>>>();
+	private final Map<String, String> keyColumns = new LinkedHashMap<String, String>();
+
+	/**
+	 * Remember that a column of one row has a new value.
+	 *
+	 * @param table
+	 * @param keyColumn
+	 * @param key
+	 * @param column
+	 * @param value
+	 */
+	void record(String table, String keyColumn, int key, String column, Object value) {
+		keyColumns.put(table, keyColumn);
+		Map<Integer, TreeMap<String, Object>> rows = dirty.get(table);
+		if (rows == null) {
+			rows = new LinkedHashMap<Integer, TreeMap<String, Object>>();
+			dirty.put(table, rows);
+		}
+		TreeMap<String, Object> columns = rows.get(key);
+		if (columns == null) {
+			columns = new TreeMap<String, Object>();
+			rows.put(key, columns);
+		}
+		columns.put(column, value);
+	}
+
+	boolean isEmpty() {
+		return dirty.isEmpty();
+	}
+
+	/**
+	 * Number of rows with pending changes
+	 */
+	int size() {
+		int n = 0;
+		for (Map<Integer, TreeMap<String, Object>> rows : dirty.values())
+			n += rows.size();
+		return n;
+	}
+
+	void clear() {
+		dirty.clear();
+	}
+
+	/**
+	 * Write all pending changes, then forget them.
+	 *
+	 * @param dbm
+	 * @throws SQLException
+	 */
+	void flush(DatabaseManager dbm) throws SQLException {
+		for (Map.Entry<String, Map<Integer, TreeMap<String, Object>>> table : dirty.entrySet()) {
+			String keyColumn = keyColumns.get(table.getKey());
+
+			// group the rows by the statement that updates them
+			Map<String, List<Map.Entry<Integer, TreeMap<String, Object>>>> groups =
+					new LinkedHashMap<String, List<Map.Entry<Integer, TreeMap<String, Object>>>>();
+			for (Map.Entry<Integer, TreeMap<String, Object>> row : table.getValue().entrySet()) {
+				String cmd = updateCommand(table.getKey(), keyColumn, row.getValue());
+				List<Map.Entry<Integer, TreeMap<String, Object>>> group = groups.get(cmd);
+				if (group == null) {
+					group = new ArrayList<Map.Entry<Integer, TreeMap<String, Object>>>();
+					groups.put(cmd, group);
+				}
+				group.add(row);
+			}
+
+			for (Map.Entry<String, List<Map.Entry<Integer, TreeMap<String, Object>>>> group : groups.entrySet()) {
+				PreparedStatement pstmt = dbm.prepare(group.getKey());
+				for (Map.Entry<Integer, TreeMap<String, Object>> row : group.getValue()) {
+					int i = 1;
+					for (Object value : row.getValue().values())
+						pstmt.setObject(i++, value);
+					pstmt.setInt(i, row.getKey());
+					pstmt.addBatch();
+				}
+				pstmt.executeBatch();
+			}
+		}
+		dirty.clear();
+	}
+
+	private static String updateCommand(String table, String keyColumn, TreeMap<String, Object> columns) {
+		StringBuilder cmd = new StringBuilder("update " + table + " set ");
+		boolean first = true;
+		for (String column : columns.keySet()) {
+			if (!first)
+				cmd.append(", ");
+			cmd.append(column).append(" = ?");
+			first = false;
+		}
+		cmd.append(" where ").append(keyColumn).append(" = ?");
+		return cmd.toString();
+	}
+}
@@ -0,0 +1,409 @@
+package dao;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind mode for the model setters of one DatabaseManager. Instead
+ * of updating the database on the caller's thread, setter changes go into a
+ * bounded queue; a background thread collects up to maxBatch of them (or
+ * whatever arrived within maxDelay of the first), writes them through a
+ * UnitOfWork on a connection of its own and commits them together, so that
+ * many changes share one log flush.
+ *
+ * When the queue is full, the setter waits up to offerTimeout for room and
+ * then fails, rather than letting memory grow without bound. Listeners
+ * hear which changes are durable, and which failed; a group that fails is
+ * retried one change at a time, so that one bad change doesn't lose the
+ * others. sync() waits for everything queued so far.
+ *
+ * Queued changes are not visible to queries on the session's own
+ * connection until they have been committed, although the model objects
+ * already hold the new values. Commit rows inserted by the session before
+ * changing them in write-behind mode, or the writer waits for their locks.
+ *
+ * @author Eli Anderson
+ */
+public class WriteBehindQueue implements AutoCloseable {
+	/**
+	 * One queued column change
+	 */
+	public static class Change {
+		private final long seq;
+		private final String table;
+		private final String keyColumn;
+		private final int key;
+		private final String column;
+		private final Object value;
+
+		Change(long seq, String table, String keyColumn, int key, String column, Object value) {
+			this.seq = seq;
+			this.table = table;
+			this.keyColumn = keyColumn;
+			this.key = key;
+			this.column = column;
+			this.value = value;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public String getTable() {
+			return table;
+		}
+
+		public int getKey() {
+			return key;
+		}
+
+		public String getColumn() {
+			return column;
+		}
+
+		public Object getValue() {
+			return value;
+		}
+
+		public String toString() {
+			return "#" + seq + " " + table + "." + column + " = " + value + " where " + keyColumn + " = " + key;
+		}
+	}
+
+	/**
+	 * Durability callbacks; called on the writer thread, so keep them short
+	 */
+	public interface Listener {
+		/**
+		 * Every change up to and including seq has been committed or reported failed
+		 */
+		void committed(long seq);
+
+		/**
+		 * The change could not be written; it is dropped
+		 */
+		void failed(Change change, RuntimeException e);
+	}
+
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final int DEFAULT_MAX_BATCH = 500;
+	public static final long DEFAULT_MAX_DELAY = 20; // milliseconds
+	public static final long DEFAULT_OFFER_TIMEOUT = 5000; // milliseconds
+
+	// how long the writer waits before retrying to open its connection, at most
+	private static final long MAX_BACKOFF = 5000; // milliseconds
+
+	private final DatabaseManager owner;
+	private final BlockingQueue<Change> queue;
+	private final int maxBatch;
+	private final long maxDelay;
+	private volatile long offerTimeout = DEFAULT_OFFER_TIMEOUT;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final Thread writer;
+	private volatile boolean closed;
+
+	// the writer's connection; only touched by the writer thread
+	private DatabaseManager session;
+
+	// why the writer thread stopped before writing everything queued, if it did
+	private volatile RuntimeException stopped;
+
+	// seq of the last change queued, and of the last one written (or failed)
+	private long enqueued;
+	private volatile long completed;
+	private volatile long groupCommits;
+	private volatile long failures;
+	private volatile long reconnects;
+
+	// sync() callers, by the seq they wait for
+	private final TreeMap<Long, List<CompletableFuture<Long>>> waiting = new TreeMap<Long, List<CompletableFuture<Long>>>();
+
+	/**
+	 * Start the writer thread; see DatabaseManager.enableWriteBehind
+	 *
+	 * @param owner the session whose setter changes are queued
+	 * @param capacity changes the queue holds before setters have to wait
+	 * @param maxBatch changes committed together at most
+	 * @param maxDelay how long a change waits for others to share its commit, in milliseconds
+	 */
+	WriteBehindQueue(DatabaseManager owner, int capacity, int maxBatch, long maxDelay) {
+		this.owner = owner;
+		this.queue = new ArrayBlockingQueue<Change>(capacity);
+		this.maxBatch = maxBatch;
+		this.maxDelay = maxDelay;
+		this.writer = new Thread(this::run, "dao-write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Set how long a setter waits for room in a full queue before failing
+	 *
+	 * @param offerTimeout milliseconds
+	 */
+	public void setOfferTimeout(long offerTimeout) {
+		this.offerTimeout = offerTimeout;
+	}
+
+	/**
+	 * Queue one change, waiting for room if the queue is full
+	 *
+	 * @return the change's sequence number
+	 */
+	long enqueue(String table, String keyColumn, int key, String column, Object value) {
+		if (closed)
+			throw new IllegalStateException("write-behind queue is closed");
+		if (stopped != null)
+			throw new IllegalStateException("write-behind writer has stopped", stopped);
+
+		synchronized (this) {
+			Change change = new Change(enqueued + 1, table, keyColumn, key, column, value);
+			try {
+				if (!queue.offer(change, offerTimeout, TimeUnit.MILLISECONDS))
+					throw new RuntimeException("write-behind queue is full");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("interrupted waiting for room in the write-behind queue", e);
+			}
+			return ++enqueued;
+		}
+	}
+
+	/**
+	 * @return a future that completes, with the seq waited for, once every
+	 * change queued so far has been committed or reported failed; or
+	 * completes exceptionally if the writer thread stops before that
+	 */
+	public CompletableFuture<Long> sync() {
+		CompletableFuture<Long> future = new CompletableFuture<Long>();
+		long target;
+		synchronized (this) {
+			target = enqueued;
+		}
+		synchronized (waiting) {
+			if (completed >= target) {
+				future.complete(target);
+			} else if (stopped != null) {
+				future.completeExceptionally(stopped);
+			} else {
+				List<CompletableFuture<Long>> futures = waiting.get(target);
+				if (futures == null) {
+					futures = new ArrayList<CompletableFuture<Long>>();
+					waiting.put(target, futures);
+				}
+				futures.add(future);
+			}
+		}
+		return future;
+	}
+
+	//***************************************************************
+	// Writer thread
+
+	private void run() {
+		List<Change> group = new ArrayList<Change>(maxBatch);
+		RuntimeException failure = null;
+		try {
+			open();
+			while (!closed || !queue.isEmpty()) {
+				Change first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+
+				// give later changes until the deadline to share the commit
+				group.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+				while (group.size() < maxBatch) {
+					long wait = deadline - System.nanoTime();
+					Change next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null)
+						break;
+					group.add(next);
+				}
+
+				write(group);
+				done(group.get(group.size() - 1).seq);
+				group.clear();
+			}
+		} catch (InterruptedException e) {
+			// close() gave up waiting; whatever is left in the queue is lost
+			failure = new IllegalStateException("write-behind queue closed before its changes were written", e);
+		} catch (RuntimeException e) {
+			failure = new IllegalStateException("write-behind writer failed", e);
+		} finally {
+			if (session != null)
+				session.close();
+			stop(failure);
+		}
+	}
+
+	// commit a group of changes, falling back to one at a time if the group fails
+	private void write(List<Change> group) throws InterruptedException {
+		try {
+			for (Change c : group)
+				session.deferUpdate(c.table, c.keyColumn, c.key, c.column, c.value);
+			session.commit();
+			groupCommits++;
+			return;
+		} catch (RuntimeException e) {
+			reopen();
+		}
+
+		for (Change c : group) {
+			try {
+				session.deferUpdate(c.table, c.keyColumn, c.key, c.column, c.value);
+				session.commit();
+			} catch (RuntimeException e) {
+				failures++;
+				for (Listener listener : listeners)
+					listener.failed(c, e);
+				reopen();
+			}
+		}
+	}
+
+	// open the writer's connection, backing off and retrying while the database
+	// can't be reached; gives up only once the queue is closed
+	private void open() throws InterruptedException {
+		long backoff = 100;
+		while (true) {
+			try {
+				DatabaseManager opened = owner.openSecondary();
+				opened.setWriteThrough(false);
+				// end the transaction opening it may have started, so close() won't refuse
+				opened.commit();
+				session = opened;
+				return;
+			} catch (RuntimeException e) {
+				if (closed)
+					throw e;
+				reconnects++;
+				Thread.sleep(backoff);
+				backoff = Math.min(backoff * 2, MAX_BACKOFF);
+			}
+		}
+	}
+
+	// a failed commit closes the session's connection, so start over with a new one
+	private void reopen() throws InterruptedException {
+		DatabaseManager old = session;
+		session = null;
+		try {
+			old.close();
+		} catch (RuntimeException e) {
+			// the connection is being replaced anyway
+		}
+		open();
+	}
+
+	// the writer is done: fail whoever still waits for changes it didn't write
+	private void stop(RuntimeException failure) {
+		List<CompletableFuture<Long>> abandoned = new ArrayList<CompletableFuture<Long>>();
+		synchronized (waiting) {
+			if (failure == null && waiting.isEmpty())
+				return;
+			stopped = failure != null ? failure : new IllegalStateException("write-behind writer has stopped");
+			for (List<CompletableFuture<Long>> futures : waiting.values())
+				abandoned.addAll(futures);
+			waiting.clear();
+		}
+		for (CompletableFuture<Long> future : abandoned)
+			future.completeExceptionally(stopped);
+	}
+
+	private void done(long seq) {
+		completed = seq;
+		for (Listener listener : listeners)
+			listener.committed(seq);
+
+		List<CompletableFuture<Long>> ready = new ArrayList<CompletableFuture<Long>>();
+		synchronized (waiting) {
+			Iterator<Map.Entry<Long, List<CompletableFuture<Long>>>> it = waiting.headMap(seq, true).entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Long, List<CompletableFuture<Long>>> entry = it.next();
+				for (CompletableFuture<Long> future : entry.getValue())
+					ready.add(future);
+				it.remove();
+			}
+		}
+		for (CompletableFuture<Long> future : ready)
+			future.complete(seq);
+	}
+
+	//***************************************************************
+	// Counters
+
+	/**
+	 * @return the number of changes waiting in the queue
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the seq of the last change queued
+	 */
+	public synchronized long getEnqueued() {
+		return enqueued;
+	}
+
+	/**
+	 * @return the seq up to which changes have been committed or reported failed
+	 */
+	public long getCompleted() {
+		return completed;
+	}
+
+	public long getGroupCommits() {
+		return groupCommits;
+	}
+
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return how often the writer had to retry opening its connection
+	 */
+	public long getReconnects() {
+		return reconnects;
+	}
+
+	/**
+	 * @return why the writer thread stopped early, or null if it is running
+	 * (or stopped after writing everything)
+	 */
+	public RuntimeException getStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Stop taking changes, write out the ones still queued and stop the
+	 * writer thread
+	 */
+	public void close() {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			writer.interrupt();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
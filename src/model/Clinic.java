@@ -1,6 +1,8 @@
 package model;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import dao.ClinicDAO;
 
 /**
@@ -63,10 +65,55 @@ public class Clinic {
 		return patients;
 	}
 
+	// retrieve one page of the clinic's patients, those after the given ssn (Integer.MIN_VALUE for the first)
+	public List<Patient> getPatients(int afterSsn, int limit) {
+		return dao.getPatients(clinicID, afterSsn, limit);
+	}
+
 	// retrieve all the doctors in a given clinic
 	public Collection<Doctor> getDoctors() {
 		if (doctors == null)
 			doctors = dao.getDoctors(clinicID);
 		return doctors;
 	}
+
+	// retrieve one page of the clinic's doctors, those after the given mln (Integer.MIN_VALUE for the first)
+	public List<Doctor> getDoctors(int afterMln, int limit) {
+		return dao.getDoctors(clinicID, afterMln, limit);
+	}
+
+	// number of patients in the clinic, maintained without reloading them
+	public int countPatients() {
+		return dao.countPatients(clinicID);
+	}
+
+	// number of the clinic's patients of each doctor, by mln
+	public Map<Integer, Integer> countPatientsByDoctor() {
+		return dao.countPatientsByDoctor(clinicID);
+	}
+
+	// number of the clinic's doctors in each specialty
+	public Map<String, Integer> countDoctorsBySpecialty() {
+		return dao.countDoctorsBySpecialty(clinicID);
+	}
+
+	// drop the loaded patient list, so it is re-read on next access
+	public void forgetPatients() {
+		patients = null;
+	}
+
+	// drop the loaded doctor list, so it is re-read on next access
+	public void forgetDoctors() {
+		doctors = null;
+	}
+
+	// keep a patient list loaded elsewhere (e.g. with the whole clinic), so getPatients() needn't read it
+	public void rememberPatients(Collection<Patient> patients) {
+		this.patients = patients;
+	}
+
+	// keep a doctor list loaded elsewhere, so getDoctors() needn't read it
+	public void rememberDoctors(Collection<Doctor> doctors) {
+		this.doctors = doctors;
+	}
 }
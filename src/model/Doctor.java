@@ -1,6 +1,7 @@
 package model;
 
 import java.util.Collection;
+import java.util.List;
 
 import dao.DoctorDAO;
 
@@ -21,6 +22,9 @@ public class Doctor {
 	private Clinic clinic;
 	private Collection<Patient> patients;
 
+	// key of a clinic that is only loaded on first use
+	private Integer clinicID;
+
 	public Doctor(DoctorDAO dao, int mln, String dname, String specialty, String phone, String email, Clinic clinic) {
 		this.dao = dao;
 		this.mln = mln;
@@ -31,8 +35,21 @@ public class Doctor {
 		this.clinic = clinic;
 	}
 
+	/**
+	 * Create a Doctor whose clinic is looked up on the first call to
+	 * getClinic(), rather than up front
+	 *
+	 * @param clinicID dCID
+	 */
+	public Doctor(DoctorDAO dao, int mln, String dname, String specialty, String phone, String email, int clinicID) {
+		this(dao, mln, dname, specialty, phone, email, null);
+		this.clinicID = clinicID;
+	}
+
 	public String toString() {
-		return dname + "\n" + specialty + "\nEmployer: " + clinic.getName();
+		// don't load the clinic just to print it; a detached doctor can't anyway
+		String employer = clinic != null ? clinic.getName() : "clinic " + clinicID;
+		return dname + "\n" + specialty + "\nEmployer: " + employer;
 	}
 
 	public String getSpecialty() {
@@ -40,17 +57,43 @@ public class Doctor {
 	}
 
 	public void setSpecialty(String specialty) {
+		String old = this.specialty;
 		this.specialty = specialty;
 		dao.changeSpecialty(mln, specialty);
+		dao.moved(getClinicID(), old, getClinicID(), specialty);
 	}
 
 	public Clinic getClinic() {
+		if (clinicID != null) {
+			clinic = dao.findClinic(clinicID);
+			clinicID = null;
+		}
 		return clinic;
 	}
 
 	public void setClinic(Clinic clinic) {
+		// the old clinic is only needed by key, so don't load it
+		Clinic old = this.clinic;
+		Integer oldID = getClinicID();
 		this.clinic = clinic;
+		this.clinicID = null;
 		dao.changeClinic(mln, clinic);
+		dao.moved(oldID, specialty, clinic.getID(), specialty);
+
+		// keep the shared clinic objects' doctor lists coherent
+		if (old != null)
+			old.forgetDoctors();
+		clinic.forgetDoctors();
+		if (oldID != null)
+			dao.forgetDoctorList(oldID);
+		dao.forgetDoctorList(clinic.getID());
+	}
+
+	// key of the clinic, without loading it
+	private Integer getClinicID() {
+		if (clinicID != null)
+			return clinicID;
+		return clinic == null ? null : clinic.getID();
 	}
 
 	public int getMLN() {
@@ -85,4 +128,19 @@ public class Doctor {
 			patients = dao.getPatients(mln);
 		return patients;
 	}
+
+	// retrieve one page of the doctor's patients, those after the given ssn (Integer.MIN_VALUE for the first)
+	public List<Patient> getPatients(int afterSsn, int limit) {
+		return dao.getPatients(mln, afterSsn, limit);
+	}
+
+	// drop the loaded patient list, so it is re-read on next access
+	public void forgetPatients() {
+		patients = null;
+	}
+
+	// keep a patient list loaded elsewhere (e.g. with the whole clinic), so getPatients() needn't read it
+	public void rememberPatients(Collection<Patient> patients) {
+		this.patients = patients;
+	}
 }
@@ -21,6 +21,10 @@ public class Patient {
 	private Clinic clinic;
 	private Doctor doctor;
 
+	// keys of a clinic and doctor that are only loaded on first use
+	private Integer clinicID;
+	private Integer doctorID;
+
 	public Patient(PatientDAO dao, int ssn, String pname, String email, String phone, String birthDate, Clinic clinic, Doctor doctor) {
 		this.dao = dao;
 		this.ssn = ssn;
@@ -32,6 +36,20 @@ public class Patient {
 		this.doctor = doctor;
 	}
 
+	/**
+	 * Create a Patient whose clinic and doctor are looked up on the first
+	 * call to getClinic() and getDoctor(), rather than up front
+	 *
+	 * @param clinicID pCID, or null if none
+	 * @param doctorID pDID, or null if none
+	 */
+	public static Patient withKeys(PatientDAO dao, int ssn, String pname, String email, String phone, String birthDate, Integer clinicID, Integer doctorID) {
+		Patient patient = new Patient(dao, ssn, pname, email, phone, birthDate, null, null);
+		patient.clinicID = clinicID;
+		patient.doctorID = doctorID;
+		return patient;
+	}
+
 	public String toString() {
 		return pname + "\n" + phone + "\n" + email;
 	}
@@ -41,19 +59,67 @@ public class Patient {
 	}
 
 	public Clinic getClinic() {
+		if (clinicID != null) {
+			clinic = dao.findClinic(clinicID);
+			clinicID = null;
+		}
 		return clinic;
 	}
 
 	public void setClinic(Clinic clinic) {
+		// the old clinic is only needed by key, so don't load it
+		Clinic old = this.clinic;
+		Integer oldID = getClinicID();
 		this.clinic = clinic;
+		this.clinicID = null;
 		dao.changeClinic(ssn, clinic);
+		dao.moved(oldID, getDoctorID(), clinic.getID(), getDoctorID());
+
+		// keep the shared clinic objects' patient lists coherent
+		if (old != null)
+			old.forgetPatients();
+		clinic.forgetPatients();
+		dao.forgetPatientLists(oldID, null);
+		dao.forgetPatientLists(clinic.getID(), null);
+	}
+
+	// key of the clinic, without loading it
+	private Integer getClinicID() {
+		if (clinicID != null)
+			return clinicID;
+		return clinic == null ? null : clinic.getID();
 	}
 
-	public Doctor getDoctor() { return doctor; }
+	public Doctor getDoctor() {
+		if (doctorID != null) {
+			doctor = dao.findDoctor(doctorID);
+			doctorID = null;
+		}
+		return doctor;
+	}
 
 	public void setDoctor(Doctor doc) {
+		// the old doctor is only needed by key, so don't load it
+		Doctor old = this.doctor;
+		Integer oldID = getDoctorID();
 		this.doctor = doc;
+		this.doctorID = null;
 		dao.changeDoctor(ssn, doc);
+		dao.moved(getClinicID(), oldID, getClinicID(), doc.getMLN());
+
+		// keep the shared doctor objects' patient lists coherent
+		if (old != null)
+			old.forgetPatients();
+		doc.forgetPatients();
+		dao.forgetPatientLists(null, oldID);
+		dao.forgetPatientLists(null, doc.getMLN());
+	}
+
+	// key of the doctor, without loading it
+	private Integer getDoctorID() {
+		if (doctorID != null)
+			return doctorID;
+		return doctor == null ? null : doctor.getMLN();
 	}
 
 	public String getPName() {
@@ -0,0 +1,395 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Pattern;
+
+import dao.DatabaseManager;
+import dao.InsertResult;
+import model.Clinic;
+import model.Doctor;
+import model.Patient;
+
+/**
+ * Bulk loader for CSV extracts of the CLINIC, DOCTOR and PATIENT tables.
+ * A reader thread parses and validates lines while the calling thread sends
+ * the previous batch to the database with the batched insert functions.
+ * Lines that fail validation or are rejected by the database (duplicate key,
+ * unknown clinic or doctor) are written to a reject file with the reason.
+ *
+ * Expected columns, one row per line, optional header line:
+ *   clinics:  clinicID,clinicName,address,phoneNumber
+ *   doctors:  mln,dname,specialty,phone,email,dCID
+ *   patients: ssn,pname,email,phone,birthDate,pCID,pDID   (birthDate yyyy-mm-dd; pCID, pDID may be empty)
+ *
+ * @author Eli Anderson
+ */
+public class CsvImporter {
+	/**
+	 * Counts for one imported file.
+	 */
+	public static class Stats {
+		public final String table;
+		public long read;
+		public long inserted;
+		public long rejected;
+		public long millis;
+
+		Stats(String table) {
+			this.table = table;
+		}
+
+		public double rowsPerSecond() {
+			return millis == 0 ? 0 : read * 1000.0 / millis;
+		}
+
+		public String toString() {
+			return String.format("%s: %d read, %d inserted, %d rejected in %.1f s (%.0f rows/s)",
+					table, read, inserted, rejected, millis / 1000.0, rowsPerSecond());
+		}
+	}
+
+	// turns the fields of one line into a model object, or throws with the reason it is invalid
+	private interface LineParser<T> {
+		T parse(String[] fields);
+	}
+
+	private static final Pattern PHONE = Pattern.compile("\\+?[0-9]([0-9 ().-]*[0-9])?");
+
+	private final DatabaseManager dbm;
+	private final PrintWriter rejects;
+	private PrintStream progress = System.out;
+	private int batchSize = 1000;
+	private int progressInterval = 100000;
+
+	/**
+	 * @param dbm
+	 * @param rejects where rejected lines go, or null to drop them
+	 */
+	public CsvImporter(DatabaseManager dbm, PrintWriter rejects) {
+		this.dbm = dbm;
+		this.rejects = rejects;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param progressInterval rows between progress lines, or 0 for none
+	 */
+	public void setProgressInterval(int progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	public void setProgressStream(PrintStream progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Import the given files in foreign key order (clinics, then doctors,
+	 * then patients), committing after each. Any file may be null.
+	 *
+	 * @return the stats of the files that were imported
+	 * @throws IOException
+	 */
+	public List<Stats> importAll(String clinicFile, String doctorFile, String patientFile) throws IOException {
+		List<Stats> stats = new ArrayList<Stats>();
+		if (clinicFile != null)
+			stats.add(importClinics(clinicFile));
+		if (doctorFile != null)
+			stats.add(importDoctors(doctorFile));
+		if (patientFile != null)
+			stats.add(importPatients(patientFile));
+		return stats;
+	}
+
+	public Stats importClinics(String file) throws IOException {
+		return run("CLINIC", file, 4, f -> {
+			int cid = parseKey(f[0], "clinicID");
+			checkLength(f[1], 30, "clinicName");
+			checkLength(f[2], 50, "address");
+			checkPhone(f[3]);
+			return new Clinic(null, cid, f[1], f[2], f[3]);
+		}, rows -> dbm.insertClinics(rows));
+	}
+
+	public Stats importDoctors(String file) throws IOException {
+		return run("DOCTOR", file, 6, f -> {
+			int mln = parseKey(f[0], "mln");
+			checkLength(f[1], 50, "dname");
+			checkLength(f[2], 30, "specialty");
+			checkPhone(f[3]);
+			checkLength(f[4], 50, "email");
+			Clinic clinic = clinicRef(parseKey(f[5], "dCID"));
+			return new Doctor(null, mln, f[1], f[2], f[3], f[4], clinic);
+		}, rows -> dbm.insertDoctors(rows));
+	}
+
+	public Stats importPatients(String file) throws IOException {
+		return run("PATIENT", file, 7, f -> {
+			int ssn = parseKey(f[0], "ssn");
+			checkLength(f[1], 50, "pname");
+			checkLength(f[2], 50, "email");
+			checkPhone(f[3]);
+			checkDate(f[4]);
+			Clinic clinic = f[5].isEmpty() ? null : clinicRef(parseKey(f[5], "pCID"));
+			Doctor doctor = f[6].isEmpty() ? null : doctorRef(parseKey(f[6], "pDID"));
+			return new Patient(null, ssn, f[1], f[2], f[3], f[4], clinic, doctor);
+		}, rows -> dbm.insertPatients(rows));
+	}
+
+	// a batch of parsed rows, with the original lines for the reject file
+	private static class Batch<T> {
+		final List<T> rows = new ArrayList<T>();
+		final List<String> lines = new ArrayList<String>();
+		boolean last;
+	}
+
+	private interface BatchInsert<T> {
+		List<InsertResult> insert(List<T> rows);
+	}
+
+	private <T> Stats run(String table, String file, int columns, LineParser<T> parser, BatchInsert<T> inserter)
+			throws IOException {
+		Stats stats = new Stats(table);
+		long start = System.currentTimeMillis();
+		BlockingQueue<Batch<T>> queue = new ArrayBlockingQueue<Batch<T>>(4);
+		IOException[] readError = new IOException[1];
+
+		// reader: parse and validate ahead of the inserts
+		Thread reader = new Thread(() -> {
+			Batch<T> batch = new Batch<T>();
+			try (BufferedReader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+				String line;
+				boolean first = true;
+				while ((line = in.readLine()) != null) {
+					if (line.isEmpty())
+						continue;
+					String[] fields = split(line);
+					if (first) {
+						first = false;
+						if (isHeader(fields))
+							continue;
+					}
+					synchronized (stats) {
+						stats.read++;
+					}
+					try {
+						if (fields.length != columns)
+							throw new IllegalArgumentException("expected " + columns + " columns, found " + fields.length);
+						batch.rows.add(parser.parse(fields));
+						batch.lines.add(line);
+					} catch (IllegalArgumentException e) {
+						reject(stats, line, e.getMessage());
+					}
+					if (batch.rows.size() == batchSize) {
+						queue.put(batch);
+						batch = new Batch<T>();
+					}
+				}
+			} catch (IOException e) {
+				readError[0] = e;
+			} catch (InterruptedException e) {
+				return;
+			}
+			batch.last = true;
+			try {
+				queue.put(batch);
+			} catch (InterruptedException e) {
+				// the importer gave up already
+			}
+		}, "csv-import-" + table);
+		reader.start();
+
+		// writer: insert each batch as it arrives
+		long nextReport = progressInterval;
+		try {
+			while (true) {
+				Batch<T> batch = queue.take();
+				if (!batch.rows.isEmpty()) {
+					List<InsertResult> results = inserter.insert(batch.rows);
+					for (int i = 0; i < results.size(); i++) {
+						if (results.get(i) == InsertResult.INSERTED) {
+							synchronized (stats) {
+								stats.inserted++;
+							}
+						} else {
+							reject(stats, batch.lines.get(i), results.get(i) == InsertResult.DUPLICATE
+									? "duplicate key" : "rejected by database (unknown clinic or doctor?)");
+						}
+					}
+				}
+
+				long done;
+				synchronized (stats) {
+					done = stats.inserted + stats.rejected;
+				}
+				if (progressInterval > 0 && done >= nextReport) {
+					long millis = System.currentTimeMillis() - start;
+					progress.printf("%s: %d rows, %.0f rows/s%n", table, done, done * 1000.0 / Math.max(millis, 1));
+					nextReport += progressInterval;
+				}
+				if (batch.last)
+					break;
+			}
+		} catch (InterruptedException e) {
+			reader.interrupt();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted importing " + table, e);
+		} catch (RuntimeException e) {
+			reader.interrupt();
+			throw e;
+		}
+
+		if (readError[0] != null)
+			throw readError[0];
+
+		dbm.commit();
+		stats.millis = System.currentTimeMillis() - start;
+		if (rejects != null)
+			rejects.flush();
+		return stats;
+	}
+
+	private void reject(Stats stats, String line, String reason) {
+		synchronized (stats) {
+			stats.rejected++;
+		}
+		if (rejects != null) {
+			synchronized (rejects) {
+				rejects.println(line + "," + quote(reason));
+			}
+		}
+	}
+
+	//***************************************************************
+	// Parsing and validation
+
+	/**
+	 * Split one CSV line into fields, honoring double-quoted fields
+	 * (with "" for an embedded quote). Fields are trimmed.
+	 */
+	static String[] split(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char ch = line.charAt(i);
+			if (quoted) {
+				if (ch == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (ch == '"') {
+					quoted = false;
+				} else {
+					field.append(ch);
+				}
+			} else if (ch == '"') {
+				quoted = true;
+			} else if (ch == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			} else {
+				field.append(ch);
+			}
+		}
+		fields.add(field.toString().trim());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	static String quote(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0)
+			return s;
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	// a header line is one whose key column is not a number
+	private static boolean isHeader(String[] fields) {
+		try {
+			Integer.parseInt(fields[0]);
+			return false;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	private static int parseKey(String s, String column) {
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bad " + column + ": " + s);
+		}
+	}
+
+	private static void checkLength(String s, int max, String column) {
+		if (s.isEmpty())
+			throw new IllegalArgumentException("missing " + column);
+		if (s.length() > max)
+			throw new IllegalArgumentException(column + " longer than " + max + " characters");
+	}
+
+	private static void checkPhone(String s) {
+		if (s.length() > 14 || !PHONE.matcher(s).matches())
+			throw new IllegalArgumentException("bad phone number: " + s);
+	}
+
+	private static void checkDate(String s) {
+		try {
+			// ISO_LOCAL_DATE is yyyy-mm-dd and rejects impossible dates
+			LocalDate.parse(s);
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("bad birthDate: " + s);
+		}
+	}
+
+	// the batched inserts only read the key of a referenced clinic or doctor
+	private static Clinic clinicRef(int cid) {
+		return new Clinic(null, cid, null, null, null);
+	}
+
+	private static Doctor doctorRef(int mln) {
+		return new Doctor(null, mln, null, null, null, null, null);
+	}
+
+	/**
+	 * Usage: CsvImporter clinics.csv doctors.csv patients.csv [rejects.csv]
+	 * Use - to skip one of the input files.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.out.println("usage: CsvImporter clinics.csv doctors.csv patients.csv [rejects.csv]");
+			return;
+		}
+
+		DatabaseManager dbm = new DatabaseManager();
+		dbm.setBatchSize(1000);
+		dbm.setCommitInterval(50000);
+		PrintWriter rejects = args.length > 3
+				? new PrintWriter(Files.newBufferedWriter(Paths.get(args[3]), StandardCharsets.UTF_8)) : null;
+		try {
+			CsvImporter importer = new CsvImporter(dbm, rejects);
+			for (Stats stats : importer.importAll(arg(args[0]), arg(args[1]), arg(args[2])))
+				System.out.println(stats);
+		} finally {
+			if (rejects != null)
+				rejects.close();
+			dbm.close();
+		}
+	}
+
+	private static String arg(String s) {
+		return s.equals("-") ? null : s;
+	}
+}
@@ -0,0 +1,336 @@
+package tools;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import dao.ConnectionPool;
+import dao.DatabaseManager;
+import model.Clinic;
+import model.Doctor;
+import model.Patient;
+
+/**
+ * Micro-benchmarks for the DAO hot paths, run against a generated dataset
+ * of clinics x doctors per clinic x patients per doctor, once in an on-disk
+ * database and once in an in-memory one.
+ *
+ * Each benchmark gets warm-up rounds and then measured rounds of a fixed
+ * number of operations. Results are written as CSV (one line per benchmark
+ * and store) so runs can be compared across releases.
+ *
+ * Lookups run with the identity maps switched off, so that they measure the
+ * database path; the ".cached" variants show the identity-map path.
+ *
+ * The pool benchmarks read from 1, 2, 4, ... threads at once, each on a
+ * session of its own from a ConnectionPool. They report wall-clock time
+ * per operation over all threads, which drops as reads scale with cores.
+ *
+ * @author Eli Anderson
+ */
+public class DaoBenchmark {
+	/**
+	 * One benchmarked operation; i is the running operation number.
+	 */
+	private interface Op {
+		void run(int i);
+	}
+
+	public static final String DISK_URL = "jdbc:derby:BenchmarkDatabase";
+	public static final String MEMORY_URL = "jdbc:derby:memory:BenchmarkDatabase";
+
+	private final int clinics;
+	private final int doctorsPerClinic;
+	private final int patientsPerDoctor;
+	private int warmupRounds = 3;
+	private int rounds = 5;
+	private int opsPerRound = 1000;
+	private final PrintWriter out;
+	private final Random random = new Random(42);
+
+	private DatabaseManager dbm;
+	private String store;
+	private int nextSSN;
+
+	public DaoBenchmark(int clinics, int doctorsPerClinic, int patientsPerDoctor, PrintWriter out) {
+		this.clinics = clinics;
+		this.doctorsPerClinic = doctorsPerClinic;
+		this.patientsPerDoctor = patientsPerDoctor;
+		this.out = out;
+	}
+
+	public void setRounds(int warmupRounds, int rounds, int opsPerRound) {
+		this.warmupRounds = warmupRounds;
+		this.rounds = rounds;
+		this.opsPerRound = opsPerRound;
+	}
+
+	private int doctors() {
+		return clinics * doctorsPerClinic;
+	}
+
+	private int patients() {
+		return doctors() * patientsPerDoctor;
+	}
+
+	/**
+	 * Run every benchmark against the database at url
+	 *
+	 * @param store label for the output, e.g. "disk"
+	 * @param url
+	 */
+	public void runAll(String store, String url) {
+		this.store = store;
+		dbm = new DatabaseManager(url);
+		try {
+			long start = System.nanoTime();
+			generate();
+			report("generate", 1, new long[] { System.nanoTime() - start });
+
+			dbm.setCacheSize(0);
+			bench("findPatient", 1, i -> dbm.findPatient(randomSSN()));
+			bench("findDoctor", 1, i -> dbm.findDoctor(randomMLN()));
+			bench("findClinic", 1, i -> dbm.findClinic(randomCID()));
+			bench("findPatientByName", 1, i -> dbm.findPatientByName("Patient " + randomSSN()));
+			bench("findDoctorByName", 1, i -> dbm.findDoctorByName("Doctor " + randomMLN()));
+			bench("findClinicByName", 1, i -> dbm.findClinicByName("Clinic " + randomCID()));
+			bench("clinicGetPatients", doctorsPerClinic * patientsPerDoctor,
+					i -> dbm.findClinic(randomCID()).getPatients());
+			bench("clinicGetPatients.nPlusOne", doctorsPerClinic * patientsPerDoctor,
+					i -> loadOneByOne(randomCID()));
+			bench("clinicGetDoctors", doctorsPerClinic, i -> dbm.findClinic(randomCID()).getDoctors());
+			bench("doctorGetPatients", patientsPerDoctor, i -> dbm.findDoctor(randomMLN()).getPatients());
+
+			dbm.setCacheSize(DatabaseManager.DEFAULT_CACHE_SIZE);
+			bench("findPatient.cached", 1, i -> dbm.findPatient(randomSSN()));
+
+			Patient patient = dbm.findPatient(0);
+			Doctor doctor = dbm.findDoctor(0);
+			Clinic clinic = dbm.findClinic(0);
+			bench("patientSetEmail", 1, i -> patient.setEmail("p" + i + "@example.org"));
+			bench("patientSetPhoneNum", 1, i -> patient.setPhoneNum("555-" + (1000000 + i % 9000000)));
+			bench("doctorSetSpecialty", 1, i -> doctor.setSpecialty("Specialty " + i % 20));
+			bench("clinicSetName", 1, i -> clinic.setName("Clinic " + i));
+
+			Doctor home = dbm.findDoctor(0);
+			bench("insertPatient", 1, i -> {
+				int ssn = nextSSN++;
+				dbm.insertPatient(ssn, "Patient " + ssn, "p@example.org", "555-000-0000", "2000-01-01",
+						home.getClinic(), home);
+			});
+
+			// destructive, so measured once at the end
+			start = System.nanoTime();
+			dbm.clearTables();
+			dbm.commit();
+			report("clearTables", patients(), new long[] { System.nanoTime() - start });
+		} finally {
+			dbm.commit();
+			dbm.close();
+		}
+	}
+
+	/**
+	 * Run the multithreaded read benchmarks against the database at url
+	 *
+	 * @param store label for the output, e.g. "disk"
+	 * @param url
+	 * @param maxThreads readers at most; also the pool size
+	 */
+	public void runPool(String store, String url, int maxThreads) {
+		this.store = store;
+		dbm = new DatabaseManager(url);
+		try {
+			generate();
+		} finally {
+			dbm.commit();
+			dbm.close();
+		}
+
+		ConnectionPool pool = new ConnectionPool(url, maxThreads, ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT);
+		try {
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				benchPool("poolFindPatient.threads" + threads, pool, threads,
+						session -> session.findPatient(ThreadLocalRandom.current().nextInt(patients())));
+				benchPool("poolClinicGetDoctors.threads" + threads, pool, threads,
+						session -> session.findClinic(ThreadLocalRandom.current().nextInt(clinics)).getDoctors());
+			}
+		} finally {
+			pool.close();
+		}
+	}
+
+	// fill the database with the configured number of rows, using the batched inserts
+	private void generate() {
+		dbm.clearTables();
+		dbm.setBatchSize(1000);
+		dbm.setCommitInterval(50000);
+
+		List<Clinic> cs = new ArrayList<Clinic>();
+		for (int c = 0; c < clinics; c++)
+			cs.add(new Clinic(null, c, "Clinic " + c, c + " Main St", "555-000-0000"));
+		dbm.insertClinics(cs);
+
+		List<Doctor> ds = new ArrayList<Doctor>();
+		for (int d = 0; d < doctors(); d++)
+			ds.add(new Doctor(null, d, "Doctor " + d, "Specialty " + d % 20, "555-111-1111",
+					"d" + d + "@example.org", cs.get(d / doctorsPerClinic)));
+		dbm.insertDoctors(ds);
+
+		List<Patient> ps = new ArrayList<Patient>();
+		for (int p = 0; p < patients(); p++) {
+			Doctor d = ds.get(p / patientsPerDoctor);
+			ps.add(new Patient(null, p, "Patient " + p, "p" + p + "@example.org", "555-222-2222",
+					(1930 + p % 80) + "-0" + (1 + p % 9) + "-1" + p % 10, d.getClinic(), d));
+			if (ps.size() == 50000) {
+				dbm.insertPatients(ps);
+				ps.clear();
+			}
+		}
+		dbm.insertPatients(ps);
+		dbm.commit();
+		nextSSN = patients();
+	}
+
+	private void bench(String name, int rowsPerOp, Op op) {
+		int i = 0;
+		for (int r = 0; r < warmupRounds; r++) {
+			for (int k = 0; k < opsPerRound; k++)
+				op.run(i++);
+			dbm.commit();
+		}
+
+		long[] nanos = new long[rounds];
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			for (int k = 0; k < opsPerRound; k++)
+				op.run(i++);
+			dbm.commit();
+			nanos[r] = (System.nanoTime() - start) / opsPerRound;
+		}
+		report(name, rowsPerOp, nanos);
+	}
+
+	/**
+	 * One benchmarked read, on the calling thread's session
+	 */
+	private interface Read {
+		void run(DatabaseManager session);
+	}
+
+	private void benchPool(String name, ConnectionPool pool, int threads, Read read) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int r = 0; r < warmupRounds; r++)
+				poolRound(pool, executor, threads, read);
+
+			long[] nanos = new long[rounds];
+			for (int r = 0; r < rounds; r++) {
+				long start = System.nanoTime();
+				poolRound(pool, executor, threads, read);
+				nanos[r] = (System.nanoTime() - start) / ((long) threads * opsPerRound);
+			}
+			report(name, 1, nanos);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// every thread does opsPerRound reads on a session of its own
+	private void poolRound(ConnectionPool pool, ExecutorService executor, int threads, Read read) {
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			tasks.add(executor.submit(() -> {
+				DatabaseManager session = pool.openSession();
+				try {
+					session.setCacheSize(0);
+					for (int k = 0; k < opsPerRound; k++)
+						read.run(session);
+					session.commit();
+				} finally {
+					session.close();
+				}
+			}));
+		}
+		try {
+			for (Future<?> task : tasks)
+				task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted waiting for the readers", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("reader failed", e.getCause());
+		}
+	}
+
+	// one CSV line: store, benchmark, dataset shape, rows per op, then ns/op mean, min, max
+	private void report(String name, int rowsPerOp, long[] nanos) {
+		long min = Long.MAX_VALUE, max = 0, sum = 0;
+		for (long n : nanos) {
+			min = Math.min(min, n);
+			max = Math.max(max, n);
+			sum += n;
+		}
+		out.printf("%s,%s,%d,%d,%d,%d,%d,%d,%d%n", store, name, clinics, doctorsPerClinic, patientsPerDoctor,
+				rowsPerOp, sum / nanos.length, min, max);
+		out.flush();
+	}
+
+	// the path the joined loaders replaced: a lookup per patient of the
+	// clinic, then one for the patient's clinic and doctor
+	private void loadOneByOne(int cid) {
+		int first = cid * doctorsPerClinic * patientsPerDoctor;
+		for (int ssn = first; ssn < first + doctorsPerClinic * patientsPerDoctor; ssn++) {
+			Patient patient = dbm.findPatient(ssn);
+			patient.getClinic();
+			patient.getDoctor();
+		}
+	}
+
+	private int randomSSN() {
+		return random.nextInt(patients());
+	}
+
+	private int randomMLN() {
+		return random.nextInt(doctors());
+	}
+
+	private int randomCID() {
+		return random.nextInt(clinics);
+	}
+
+	/**
+	 * Usage: DaoBenchmark clinics doctorsPerClinic patientsPerDoctor [opsPerRound] [results.csv] [maxThreads]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.out.println("usage: DaoBenchmark clinics doctorsPerClinic patientsPerDoctor [opsPerRound] [results.csv] [maxThreads]");
+			return;
+		}
+
+		// "-" writes to standard output
+		PrintWriter out = args.length > 4 && !args[4].equals("-") ? new PrintWriter(new FileWriter(args[4])) : new PrintWriter(System.out);
+		out.println("store,benchmark,clinics,doctorsPerClinic,patientsPerDoctor,rowsPerOp,nsPerOpMean,nsPerOpMin,nsPerOpMax");
+
+		DaoBenchmark bench = new DaoBenchmark(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+				Integer.parseInt(args[2]), out);
+		if (args.length > 3)
+			bench.setRounds(3, 5, Integer.parseInt(args[3]));
+
+		int maxThreads = args.length > 5 ? Integer.parseInt(args[5]) : ConnectionPool.DEFAULT_SIZE;
+
+		bench.runAll("disk", DISK_URL);
+		bench.runAll("memory", MEMORY_URL);
+		bench.runPool("disk", DISK_URL, maxThreads);
+		bench.runPool("memory", MEMORY_URL, maxThreads);
+		out.close();
+	}
+}
@@ -0,0 +1,59 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import dao.ConnectionPool;
+import dao.DatabaseManager;
+import dao.TableExporter;
+import dao.TableExporter.Format;
+import dao.TableExporter.Table;
+
+/**
+ * Command-line front end for TableExporter: writes the clinic and doctor
+ * tables whole, and the patients as one file per clinic, exported in
+ * parallel over a connection pool.
+ *
+ * @author Eli Anderson
+ */
+public class TableExport {
+	/**
+	 * Usage: TableExport dir [csv|binary] [gzip] [parallelism]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: TableExport dir [csv|binary] [gzip] [parallelism]");
+			return;
+		}
+		Path dir = Paths.get(args[0]);
+		Format format = args.length > 1 && args[1].equalsIgnoreCase("binary") ? Format.BINARY : Format.CSV;
+		boolean gzip = args.length > 2 && args[2].equalsIgnoreCase("gzip");
+		int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : ConnectionPool.DEFAULT_SIZE;
+		Files.createDirectories(dir);
+
+		TableExporter exporter = new TableExporter(format, gzip);
+		ConnectionPool pool = new ConnectionPool(parallelism, ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT);
+		try {
+			long start = System.currentTimeMillis();
+			DatabaseManager dbm = pool.openSession();
+			try {
+				for (Table table : new Table[] { Table.CLINIC, Table.DOCTOR }) {
+					long rows = exporter.exportTable(dbm, table, dir.resolve(exporter.fileName(table, null)));
+					System.out.println(table + ": " + rows + " rows");
+				}
+			} finally {
+				dbm.close();
+			}
+
+			long rows = 0;
+			for (long n : exporter.exportByClinic(pool, Table.PATIENT, dir, parallelism).values())
+				rows += n;
+			System.out.println(Table.PATIENT + ": " + rows + " rows");
+			System.out.println("done in " + (System.currentTimeMillis() - start) / 1000.0 + " s");
+		} finally {
+			pool.close();
+		}
+	}
+}